@@ -0,0 +1,236 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Encodes the anchor adjacency in the compact format stored in Firebase, and decodes both that
+ * format and the legacy Java-serialized {@code List<List<Edge>>} payloads.
+ *
+ * <p>The compact format is Base64 over the following bytes:
+ *
+ * <pre>
+ *   'A' 'G' version
+ *   varint nodeCount
+ *   for each node:
+ *     varint degree
+ *     for each edge, ordered by target: zigzag varint (target - previous target), varint weight
+ * </pre>
+ *
+ * The first previous target of a node is the node itself, since anchors are mostly connected to
+ * anchors hosted around the same time. Weights are quantized to {@link #WEIGHT_QUANTUM}.
+ */
+final class AdjacencyCodec {
+    private static final int MAGIC_0 = 'A';
+    private static final int MAGIC_1 = 'G';
+    private static final int VERSION = 1;
+    // Java serialization streams start with 0xACED.
+    private static final int LEGACY_MAGIC_0 = 0xAC;
+    private static final int LEGACY_MAGIC_1 = 0xED;
+
+    /** Weights are stored as whole multiples of this value, i.e. millimetres for metric weights. */
+    static final float WEIGHT_QUANTUM = 0.001f;
+
+    private AdjacencyCodec() {}
+
+    /**
+     * Encodes {@code graph} as a Base64 string.
+     */
+    static String encode(AnchorGraph graph) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 3 * graph.edgeCount());
+        try (OutputStream out = Base64.getEncoder().wrap(bytes)) {
+            write(graph, out);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Writes {@code graph} in the compact format, without the Base64 layer.
+     */
+    static void write(AnchorGraph graph, OutputStream out) throws IOException {
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        int nodeCount = graph.nodeCount();
+        writeVarint(out, nodeCount);
+
+        // Each row is sorted through a scratch buffer of (target << 32 | edge index) so the deltas
+        // stay small and non-negative after the first one.
+        long[] row = new long[0];
+        for (int node = 0; node < nodeCount; node++) {
+            int start = graph.offsets[node];
+            int degree = graph.offsets[node + 1] - start;
+            if (row.length < degree) {
+                row = new long[Math.max(degree, 2 * row.length)];
+            }
+            for (int i = 0; i < degree; i++) {
+                row[i] = ((long) graph.targets[start + i] << 32) | (start + i);
+            }
+            Arrays.sort(row, 0, degree);
+
+            writeVarint(out, degree);
+            int previous = node;
+            for (int i = 0; i < degree; i++) {
+                int edge = (int) row[i];
+                int target = graph.targets[edge];
+                writeVarint(out, zigzag(target - previous));
+                writeVarint(out, Math.max(0, Math.round(graph.weights[edge] / WEIGHT_QUANTUM)));
+                previous = target;
+            }
+        }
+    }
+
+    /**
+     * Decodes a Base64 string in either the compact or the legacy format.
+     */
+    static AnchorGraph decode(String encoded) throws IOException, ClassNotFoundException {
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed Base64 in adjacency", e);
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        int first = in.read();
+        int second = in.read();
+        if (first == LEGACY_MAGIC_0 && second == LEGACY_MAGIC_1) {
+            in.reset();
+            return readLegacy(in);
+        }
+        if (first != MAGIC_0 || second != MAGIC_1) {
+            throw new IOException("Unknown adjacency format");
+        }
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported adjacency version " + version);
+        }
+        return read(in);
+    }
+
+    /**
+     * Reads the compact format. Counts are checked against the bytes left before anything is
+     * allocated from them: every node takes at least one byte, for its degree, and every edge two.
+     */
+    private static AnchorGraph read(ByteArrayInputStream in) throws IOException {
+        int nodeCount = readVarint(in);
+        if (nodeCount < 0 || nodeCount > in.available()) {
+            throw new IOException("Node count " + nodeCount + " exceeds the adjacency payload");
+        }
+        int[] offsets = new int[nodeCount + 1];
+        int[] targets = new int[Math.max(16, 2 * nodeCount)];
+        float[] weights = new float[targets.length];
+        int edgeCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int degree = readVarint(in);
+            if (degree < 0 || degree > in.available() / 2) {
+                throw new IOException("Degree " + degree + " exceeds the adjacency payload");
+            }
+            if (targets.length < edgeCount + degree) {
+                int capacity = Math.max(edgeCount + degree, 2 * targets.length);
+                targets = Arrays.copyOf(targets, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+            }
+            int previous = node;
+            for (int i = 0; i < degree; i++) {
+                int target = previous + unzigzag(readVarint(in));
+                if (target < 0 || target >= nodeCount) {
+                    throw new IOException("Edge target " + target + " out of range");
+                }
+                targets[edgeCount] = target;
+                weights[edgeCount] = readVarint(in) * WEIGHT_QUANTUM;
+                edgeCount++;
+                previous = target;
+            }
+            offsets[node + 1] = edgeCount;
+        }
+        return new AnchorGraph(
+                offsets, Arrays.copyOf(targets, edgeCount), Arrays.copyOf(weights, edgeCount));
+    }
+
+    /**
+     * Reads a legacy payload, checking that it really is a list of lists of edges.
+     */
+    @SuppressWarnings("unchecked")
+    private static AnchorGraph readLegacy(InputStream in) throws IOException, ClassNotFoundException {
+        Object adjacency;
+        try (ObjectInputStream ois = new LegacyAdjacencyInputStream(in)) {
+            adjacency = ois.readObject();
+        }
+        if (!(adjacency instanceof List)) {
+            throw new IOException("Legacy adjacency is not a list");
+        }
+        for (Object row : (List<?>) adjacency) {
+            if (!(row instanceof List)) {
+                throw new IOException("Legacy adjacency row is not a list");
+            }
+            for (Object edge : (List<?>) row) {
+                if (!(edge instanceof Edge)) {
+                    throw new IOException("Legacy adjacency row holds a non-edge");
+                }
+            }
+        }
+        return AnchorGraph.fromAdjacency((List<List<Edge>>) adjacency);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated adjacency");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in adjacency");
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Only lets the classes of a legacy {@code List<List<Edge>>} payload be deserialized.
+     */
+    private static final class LegacyAdjacencyInputStream extends ObjectInputStream {
+        LegacyAdjacencyInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (!name.equals(ArrayList.class.getName()) && !name.equals(Edge.class.getName())) {
+                throw new InvalidClassException(name, "Unexpected class in adjacency payload");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.Arrays;
+
+/**
+ * Union-find over anchor ids that tracks which anchors are connected by the adjacency. Edges are
+ * never removed from a room, so the structure only has to handle unions, and is rebuilt from a
+ * snapshot when the whole adjacency is replaced.
+ */
+final class AnchorConnectivity {
+    private int[] parent = new int[0];
+    private byte[] rank = new byte[0];
+
+    /**
+     * Makes room for anchor ids in {@code [0, anchorCount)}; new ids start in their own component.
+     */
+    void ensureCapacity(int anchorCount) {
+        int oldCount = parent.length;
+        if (oldCount >= anchorCount) {
+            return;
+        }
+        int capacity = Math.max(anchorCount, 2 * oldCount);
+        parent = Arrays.copyOf(parent, capacity);
+        rank = Arrays.copyOf(rank, capacity);
+        for (int i = oldCount; i < capacity; i++) {
+            parent[i] = i;
+        }
+    }
+
+    /**
+     * Replaces the components with those of {@code graph}.
+     */
+    void rebuild(AnchorGraph graph) {
+        int nodeCount = graph.nodeCount();
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+            rank[i] = 0;
+        }
+        ensureCapacity(nodeCount);
+        for (int node = 0; node < nodeCount; node++) {
+            for (int e = graph.offsets[node]; e < graph.offsets[node + 1]; e++) {
+                union(node, graph.targets[e]);
+            }
+        }
+    }
+
+    void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA == rootB) {
+            return;
+        }
+        if (rank[rootA] < rank[rootB]) {
+            parent[rootA] = rootB;
+        } else if (rank[rootA] > rank[rootB]) {
+            parent[rootB] = rootA;
+        } else {
+            parent[rootB] = rootA;
+            rank[rootA]++;
+        }
+    }
+
+    /**
+     * Returns whether both ids are known and in the same component.
+     */
+    boolean connected(int a, int b) {
+        if (a < 0 || b < 0 || a >= parent.length || b >= parent.length) {
+            return false;
+        }
+        return find(a) == find(b);
+    }
+
+    private int find(int node) {
+        int root = node;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        // Path compression.
+        while (parent[node] != root) {
+            int next = parent[node];
+            parent[node] = root;
+            node = next;
+        }
+        return root;
+    }
+}
@@ -0,0 +1,78 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable compressed-sparse-row snapshot of the anchor adjacency. The edges leaving anchor
+ * {@code i} are stored at positions {@code [offsets[i], offsets[i + 1])} of {@link #targets} and
+ * {@link #weights}, so a traversal reads three flat arrays instead of chasing boxed {@link Edge}
+ * objects.
+ */
+final class AnchorGraph {
+    static final AnchorGraph EMPTY = new AnchorGraph(new int[] {0}, new int[0], new float[0]);
+
+    final int[] offsets;
+    final int[] targets;
+    final float[] weights;
+
+    AnchorGraph(int[] offsets, int[] targets, float[] weights) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.weights = weights;
+    }
+
+    /**
+     * Builds a snapshot of {@code adjacency}. Edges pointing outside of the adjacency are dropped.
+     */
+    static AnchorGraph fromAdjacency(List<List<Edge>> adjacency) {
+        int nodeCount = adjacency.size();
+        int[] offsets = new int[nodeCount + 1];
+        for (int node = 0; node < nodeCount; node++) {
+            int degree = 0;
+            for (Edge edge : adjacency.get(node)) {
+                if (edge.id >= 0 && edge.id < nodeCount) {
+                    degree++;
+                }
+            }
+            offsets[node + 1] = offsets[node] + degree;
+        }
+        int[] targets = new int[offsets[nodeCount]];
+        float[] weights = new float[offsets[nodeCount]];
+        for (int node = 0; node < nodeCount; node++) {
+            int at = offsets[node];
+            for (Edge edge : adjacency.get(node)) {
+                if (edge.id >= 0 && edge.id < nodeCount) {
+                    targets[at] = (int) edge.id;
+                    weights[at] = edge.weight;
+                    at++;
+                }
+            }
+        }
+        return new AnchorGraph(offsets, targets, weights);
+    }
+
+    /**
+     * Expands the snapshot back into an editable adjacency.
+     */
+    List<List<Edge>> toAdjacency() {
+        int nodeCount = nodeCount();
+        List<List<Edge>> adjacency = new ArrayList<>(nodeCount);
+        for (int node = 0; node < nodeCount; node++) {
+            List<Edge> edges = new ArrayList<>(offsets[node + 1] - offsets[node]);
+            for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+                edges.add(new Edge(targets[e], weights[e]));
+            }
+            adjacency.add(edges);
+        }
+        return adjacency;
+    }
+
+    int nodeCount() {
+        return offsets.length - 1;
+    }
+
+    int edgeCount() {
+        return targets.length;
+    }
+}
@@ -0,0 +1,478 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.ar.sceneform.Node;
+import com.google.ar.sceneform.NodeParent;
+import com.google.ar.sceneform.math.Vector3;
+import com.google.ar.sceneform.rendering.MaterialFactory;
+import com.google.ar.sceneform.rendering.ModelRenderable;
+import com.google.ar.sceneform.rendering.RenderableDefinition;
+import com.google.ar.sceneform.rendering.Texture;
+import com.google.ar.sceneform.rendering.Vertex;
+
+import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws the names of all anchors from one renderable. Each name is rasterized once into a cell of
+ * a shared atlas texture, and every label is a quad of one mesh, turned to face the camera. An atlas
+ * page holds {@link #CELLS_PER_PAGE} cells, the last of which is a dot; more pages are added as
+ * needed, each a submesh of the same renderable. Renaming an anchor uploads only its cell.
+ *
+ * <p>A {@link VisibilityManager} decides per label whether its quad shows the name, the dot, or
+ * nothing; a hidden label's quad is collapsed to a point so that the mesh layout stays the same.
+ *
+ * <p>Must be used on the UI thread.
+ */
+final class AnchorLabelRenderer {
+    private static final String TAG =
+            CloudAnchorActivity.class.getSimpleName() + "." + AnchorLabelRenderer.class.getSimpleName();
+
+    // Atlas layout, in pixels.
+    private static final int PAGE_SIZE = 1024;
+    private static final int CELL_WIDTH = 256;
+    private static final int CELL_HEIGHT = 64;
+    private static final int COLUMNS = PAGE_SIZE / CELL_WIDTH;
+    private static final int CELLS_PER_PAGE = COLUMNS * (PAGE_SIZE / CELL_HEIGHT);
+    private static final float CELL_PADDING = 8f;
+    private static final float TEXT_SIZE = 36f;
+    private static final int DOT_CELL = CELLS_PER_PAGE - 1;
+
+    // Label size and placement, in meters.
+    private static final float LABEL_WIDTH = .4f;
+    private static final float LABEL_HEIGHT = LABEL_WIDTH * CELL_HEIGHT / CELL_WIDTH;
+    private static final float LABEL_ELEVATION = 1f;
+    private static final float DOT_SIZE = .06f;
+
+    // Labels are turned to the camera again once it turned by about a degree or moved by the given
+    // distance, and follow their anchors at least this often.
+    private static final float MIN_FACING_DOT = .9998f;
+    private static final float MAX_CAMERA_MOVE_SQUARED = .25f * .25f;
+    private static final long MAX_REFRESH_INTERVAL_MILLIS = 500;
+
+    private static final Comparator<Label> NEAREST_FIRST =
+            (a, b) -> Float.compare(a.distanceSquared, b.distanceSquared);
+
+    private static final class Label {
+        final Page page;
+        final int cell;
+        Node anchorNode;
+        String text;
+        // Set on every refresh.
+        final Vector3 position = new Vector3();
+        float distanceSquared;
+        VisibilityManager.Level level = VisibilityManager.Level.HIDDEN;
+
+        Label(Page page, int cell, Node anchorNode, String text) {
+            this.page = page;
+            this.cell = cell;
+            this.anchorNode = anchorNode;
+            this.text = text;
+        }
+    }
+
+    /**
+     * One atlas texture and the labels drawn from it.
+     */
+    private static final class Page {
+        final ArrayDeque<Integer> freeCells = new ArrayDeque<>();
+        final ArrayList<Label> labels = new ArrayList<>();
+        final ArrayList<Integer> triangleIndices = new ArrayList<>();
+        // Cells are drawn into the bitmap until the texture is made from it.
+        @Nullable
+        Bitmap pendingBitmap;
+        @Nullable
+        Canvas pendingCanvas;
+        @Nullable
+        Texture texture = null;
+        // Made once the page's material is ready.
+        @Nullable
+        RenderableDefinition.Submesh submesh = null;
+
+        Page() {
+            for (int cell = 0; cell < DOT_CELL; cell++) {
+                freeCells.add(cell);
+            }
+            pendingBitmap = Bitmap.createBitmap(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.ARGB_8888);
+            pendingCanvas = new Canvas(pendingBitmap);
+        }
+    }
+
+    private final Context context;
+    private final NodeParent scene;
+    private final Map<Long, Label> labels = new HashMap<>();
+    private final ArrayList<Page> pages = new ArrayList<>();
+    private final Texture.Sampler sampler = Texture.Sampler.builder()
+            .setMinFilter(Texture.Sampler.MinFilter.LINEAR)
+            .setMagFilter(Texture.Sampler.MagFilter.LINEAR)
+            .setWrapMode(Texture.Sampler.WrapMode.CLAMP_TO_EDGE)
+            .build();
+
+    private final Paint backgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint copyPaint = new Paint();
+    private final RectF cellRect = new RectF(0f, 0f, CELL_WIDTH, CELL_HEIGHT);
+    // Every cell is drawn here first, then copied into its page or into a buffer for the upload.
+    private final Bitmap cellBitmap = Bitmap.createBitmap(CELL_WIDTH, CELL_HEIGHT, Bitmap.Config.ARGB_8888);
+    private final Canvas cellCanvas = new Canvas(cellBitmap);
+    // Buffers of cell uploads that are done; one is only reused once its upload is.
+    private final ArrayDeque<ByteBuffer> idleCellBuffers = new ArrayDeque<>();
+
+    // The mesh; its lists are prefixes of the pools, as in RouteMesh.
+    private final ArrayList<Vertex> vertexPool = new ArrayList<>();
+    private final ArrayList<Vertex> vertices = new ArrayList<>();
+    private final ArrayList<RenderableDefinition.Submesh> submeshes = new ArrayList<>();
+    // The labels in vertex order, four vertices each, and the same labels nearest first.
+    private final ArrayList<Label> drawnLabels = new ArrayList<>();
+    private final ArrayList<Label> labelsByDistance = new ArrayList<>();
+    private final RenderableDefinition definition = RenderableDefinition.builder()
+            .setVertices(vertices)
+            .setSubmeshes(submeshes)
+            .build();
+    private final Node labelNode = new Node();
+    @Nullable
+    private ModelRenderable renderable = null;
+
+    private boolean topologyDirty = false;
+    private boolean positionsDirty = false;
+    private final Vector3 lastCameraForward = new Vector3();
+    private final Vector3 lastCameraPosition = new Vector3();
+    private long lastRefreshMillis = 0;
+
+    AnchorLabelRenderer(Context context, NodeParent scene) {
+        this.context = context;
+        this.scene = scene;
+        backgroundPaint.setColor(0xd0ffffff);
+        textPaint.setColor(0xff000000);
+        textPaint.setTextSize(TEXT_SIZE);
+        textPaint.setTextAlign(Paint.Align.CENTER);
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * Shows {@code text} above {@code anchorNode}, replacing the label of {@code anchorId} if it has
+     * one.
+     */
+    void setLabel(long anchorId, Node anchorNode, @Nullable String text) {
+        if (text == null) {
+            text = "";
+        }
+        Label label = labels.get(anchorId);
+        if (label == null) {
+            Page page = pageWithFreeCell();
+            label = new Label(page, page.freeCells.poll(), anchorNode, text);
+            labels.put(anchorId, label);
+            page.labels.add(label);
+            drawCell(label);
+            topologyDirty = true;
+            return;
+        }
+        label.anchorNode = anchorNode;
+        positionsDirty = true;
+        if (!label.text.equals(text)) {
+            label.text = text;
+            drawCell(label);
+        }
+    }
+
+    /**
+     * Removes the label of {@code anchorId}, if it has one. Its atlas cell is reused by a later
+     * label.
+     */
+    void removeLabel(long anchorId) {
+        Label label = labels.remove(anchorId);
+        if (label == null) {
+            return;
+        }
+        label.page.labels.remove(label);
+        label.page.freeCells.add(label.cell);
+        topologyDirty = true;
+    }
+
+    /**
+     * Removes every label, keeping the atlas pages for the next ones.
+     */
+    void clear() {
+        for (Page page : pages) {
+            for (Label label : page.labels) {
+                page.freeCells.add(label.cell);
+            }
+            page.labels.clear();
+        }
+        labels.clear();
+        topologyDirty = true;
+    }
+
+    /**
+     * Returns the number of labels shown.
+     */
+    int getLabelCount() {
+        return labels.size();
+    }
+
+    /**
+     * Returns the number of atlas pages made so far.
+     */
+    int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Turns the labels to {@code camera}, moves them with their anchors and picks their level of
+     * detail. Call every frame, after {@link VisibilityManager#beginFrame}; the mesh is only
+     * rewritten when the camera turned or moved, labels changed, or a while has passed.
+     */
+    void update(Node camera, VisibilityManager visibility, long nowMillis) {
+        boolean changed = topologyDirty || positionsDirty;
+        if (topologyDirty) {
+            rebuildTopology();
+            topologyDirty = false;
+        }
+        positionsDirty = false;
+        if (drawnLabels.isEmpty()) {
+            if (renderable != null) {
+                labelNode.setEnabled(false);
+            }
+            return;
+        }
+        Vector3 forward = camera.getForward();
+        Vector3 position = camera.getWorldPosition();
+        boolean turned = Vector3.dot(forward, lastCameraForward) < MIN_FACING_DOT;
+        boolean moved = Vector3.subtract(position, lastCameraPosition).lengthSquared() > MAX_CAMERA_MOVE_SQUARED;
+        if (!changed && !turned && !moved && nowMillis - lastRefreshMillis < MAX_REFRESH_INTERVAL_MILLIS) {
+            return;
+        }
+        lastCameraForward.set(forward);
+        lastCameraPosition.set(position);
+        lastRefreshMillis = nowMillis;
+
+        classify(visibility);
+        writeVertices(camera.getRight(), camera.getUp(), forward);
+        if (renderable == null) {
+            // A renderable built from a definition is ready as soon as build returns.
+            renderable = ModelRenderable.builder().setSource(definition).build().join();
+            renderable.setShadowCaster(false);
+            renderable.setShadowReceiver(false);
+            labelNode.setRenderable(renderable);
+            labelNode.setParent(scene);
+        } else {
+            renderable.updateFromDefinition(definition);
+        }
+        labelNode.setEnabled(true);
+    }
+
+    private Page pageWithFreeCell() {
+        for (Page page : pages) {
+            if (!page.freeCells.isEmpty()) {
+                return page;
+            }
+        }
+        Page page = new Page();
+        pages.add(page);
+        drawDot(page);
+        Texture.builder()
+                .setSource(page.pendingBitmap)
+                .setSampler(sampler)
+                .build()
+                .thenAccept(
+                        texture -> {
+                            // The cells drawn so far were uploaded with the bitmap.
+                            page.texture = texture;
+                            page.pendingBitmap = null;
+                            page.pendingCanvas = null;
+                            MaterialFactory.makeTransparentWithTexture(context, texture)
+                                    .thenAccept(
+                                            material -> {
+                                                page.submesh = RenderableDefinition.Submesh.builder()
+                                                        .setTriangleIndices(page.triangleIndices)
+                                                        .setMaterial(material)
+                                                        .build();
+                                                topologyDirty = true;
+                                            });
+                        })
+                .exceptionally(
+                        throwable -> {
+                            Log.e(TAG, "Could not make a label atlas page", throwable);
+                            return null;
+                        });
+        return page;
+    }
+
+    /**
+     * Draws the dot shown for labels at mid range into the page's dot cell, before the page is
+     * uploaded.
+     */
+    private void drawDot(Page page) {
+        float x = (DOT_CELL % COLUMNS) * CELL_WIDTH;
+        float y = (DOT_CELL / COLUMNS) * CELL_HEIGHT;
+        page.pendingCanvas.drawCircle(x + CELL_HEIGHT / 2f, y + CELL_HEIGHT / 2f, CELL_HEIGHT / 2f - 2f, backgroundPaint);
+    }
+
+    /**
+     * Rasterizes the label's text into its atlas cell.
+     */
+    private void drawCell(Label label) {
+        cellBitmap.eraseColor(Color.TRANSPARENT);
+        cellCanvas.drawRoundRect(cellRect, CELL_HEIGHT / 4f, CELL_HEIGHT / 4f, backgroundPaint);
+        CharSequence text = TextUtils.ellipsize(
+                label.text, textPaint, CELL_WIDTH - 2 * CELL_PADDING, TextUtils.TruncateAt.END);
+        float baseline = (CELL_HEIGHT - textPaint.ascent() - textPaint.descent()) / 2f;
+        cellCanvas.drawText(text, 0, text.length(), CELL_WIDTH / 2f, baseline, textPaint);
+
+        int x = (label.cell % COLUMNS) * CELL_WIDTH;
+        int y = (label.cell / COLUMNS) * CELL_HEIGHT;
+        Page page = label.page;
+        if (page.texture != null) {
+            // The bitmap is drawn again by the next rename, so the upload gets its own copy.
+            ByteBuffer pixels = idleCellBuffers.poll();
+            if (pixels == null) {
+                pixels = ByteBuffer.allocateDirect(CELL_WIDTH * CELL_HEIGHT * 4);
+            }
+            pixels.clear();
+            cellBitmap.copyPixelsToBuffer(pixels);
+            pixels.rewind();
+            ByteBuffer uploaded = pixels;
+            page.texture.setRegion(x, y, CELL_WIDTH, CELL_HEIGHT, pixels, () -> idleCellBuffers.push(uploaded));
+        } else if (page.pendingCanvas != null) {
+            page.pendingCanvas.drawBitmap(cellBitmap, x, y, copyPaint);
+        }
+    }
+
+    /**
+     * Lays the labels of every page whose material is ready out in the vertex and index lists.
+     */
+    private void rebuildTopology() {
+        drawnLabels.clear();
+        submeshes.clear();
+        for (Page page : pages) {
+            page.triangleIndices.clear();
+            if (page.submesh == null || page.labels.isEmpty()) {
+                continue;
+            }
+            for (Label label : page.labels) {
+                int base = drawnLabels.size() * 4;
+                drawnLabels.add(label);
+                // Counter-clockwise, seen from the camera.
+                page.triangleIndices.add(base);
+                page.triangleIndices.add(base + 1);
+                page.triangleIndices.add(base + 2);
+                page.triangleIndices.add(base);
+                page.triangleIndices.add(base + 2);
+                page.triangleIndices.add(base + 3);
+            }
+            submeshes.add(page.submesh);
+        }
+        while (vertexPool.size() < drawnLabels.size() * 4) {
+            vertexPool.add(Vertex.builder()
+                    .setPosition(Vector3.zero())
+                    .setNormal(Vector3.zero())
+                    .setUvCoordinate(new Vertex.UvCoordinate(0f, 0f))
+                    .build());
+        }
+        while (vertices.size() > drawnLabels.size() * 4) {
+            vertices.remove(vertices.size() - 1);
+        }
+        while (vertices.size() < drawnLabels.size() * 4) {
+            vertices.add(vertexPool.get(vertices.size()));
+        }
+    }
+
+    /**
+     * Picks the level of detail of every drawn label, nearest first.
+     */
+    private void classify(VisibilityManager visibility) {
+        labelsByDistance.clear();
+        for (int i = 0; i < drawnLabels.size(); i++) {
+            Label label = drawnLabels.get(i);
+            Vector3 anchor = label.anchorNode.getWorldPosition();
+            label.position.set(anchor.x, anchor.y + LABEL_ELEVATION, anchor.z);
+            label.distanceSquared = visibility.distanceSquared(label.position.x, label.position.y, label.position.z);
+            labelsByDistance.add(label);
+        }
+        labelsByDistance.sort(NEAREST_FIRST);
+        for (int i = 0; i < labelsByDistance.size(); i++) {
+            Label label = labelsByDistance.get(i);
+            label.level = visibility.classify(VisibilityManager.Kind.LABEL,
+                    label.position.x, label.position.y, label.position.z, LABEL_WIDTH / 2f);
+        }
+    }
+
+    private void writeVertices(Vector3 right, Vector3 up, Vector3 forward) {
+        for (int i = 0; i < drawnLabels.size(); i++) {
+            Label label = drawnLabels.get(i);
+            float cx = label.position.x;
+            float cy = label.position.y;
+            float cz = label.position.z;
+
+            float halfWidth;
+            float halfHeight;
+            int cell;
+            float cellWidth;
+            switch (label.level) {
+                case FULL:
+                    halfWidth = LABEL_WIDTH / 2f;
+                    halfHeight = LABEL_HEIGHT / 2f;
+                    cell = label.cell;
+                    cellWidth = CELL_WIDTH;
+                    break;
+                case DOT:
+                    halfWidth = DOT_SIZE / 2f;
+                    halfHeight = DOT_SIZE / 2f;
+                    cell = DOT_CELL;
+                    cellWidth = CELL_HEIGHT;
+                    break;
+                case HIDDEN:
+                default:
+                    halfWidth = 0f;
+                    halfHeight = 0f;
+                    cell = DOT_CELL;
+                    cellWidth = CELL_HEIGHT;
+                    break;
+            }
+            float rx = right.x * halfWidth;
+            float ry = right.y * halfWidth;
+            float rz = right.z * halfWidth;
+            float ux = up.x * halfHeight;
+            float uy = up.y * halfHeight;
+            float uz = up.z * halfHeight;
+
+            // Bitmap rows start at v = 0, so the top of a cell has the smaller v.
+            float u0 = (float) ((cell % COLUMNS) * CELL_WIDTH) / PAGE_SIZE;
+            float u1 = u0 + cellWidth / PAGE_SIZE;
+            float vTop = (float) ((cell / COLUMNS) * CELL_HEIGHT) / PAGE_SIZE;
+            float vBottom = vTop + (float) CELL_HEIGHT / PAGE_SIZE;
+
+            int base = i * 4;
+            writeVertex(vertices.get(base), cx - rx - ux, cy - ry - uy, cz - rz - uz, u0, vBottom, forward);
+            writeVertex(vertices.get(base + 1), cx + rx - ux, cy + ry - uy, cz + rz - uz, u1, vBottom, forward);
+            writeVertex(vertices.get(base + 2), cx + rx + ux, cy + ry + uy, cz + rz + uz, u1, vTop, forward);
+            writeVertex(vertices.get(base + 3), cx - rx + ux, cy - ry + uy, cz - rz + uz, u0, vTop, forward);
+        }
+    }
+
+    private static void writeVertex(Vertex vertex, float x, float y, float z, float u, float v, Vector3 forward) {
+        vertex.getPosition().set(x, y, z);
+        // Facing the camera.
+        vertex.getNormal().set(-forward.x, -forward.y, -forward.z);
+        Vertex.UvCoordinate uv = vertex.getUvCoordinate();
+        uv.x = u;
+        uv.y = v;
+    }
+}
@@ -0,0 +1,314 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.Arrays;
+
+/**
+ * Uniform 3D hash grid over anchor world positions, indexed by anchor id. Points can be inserted
+ * and moved one at a time, and nearest / k-nearest queries search outward ring by ring from the
+ * query cell. All state lives in primitive arrays, so queries do not allocate.
+ *
+ * <p>Instances are not thread safe.
+ */
+final class AnchorSpatialIndex {
+    private static final int NONE = -1;
+    private static final long EMPTY_KEY = Long.MIN_VALUE;
+    // Cell coordinates are packed into 21 bits each.
+    private static final int CELL_BITS = 21;
+    private static final int CELL_MASK = (1 << CELL_BITS) - 1;
+    private static final int CELL_OFFSET = 1 << (CELL_BITS - 1);
+
+    private final float cellSize;
+
+    // Per anchor id.
+    private float[] positions = new float[0];
+    private long[] cellOf = new long[0];
+    private int[] next = new int[0];
+    private int[] previous = new int[0];
+    private boolean[] present = new boolean[0];
+    private int size = 0;
+
+    // Open addressing table from packed cell key to the first anchor in that cell.
+    private long[] cellKeys = new long[16];
+    private int[] cellHeads = new int[16];
+    private int usedCells = 0;
+
+    // Bounds of the occupied cells, which limit how far a search has to look.
+    private int minCellX, minCellY, minCellZ, maxCellX, maxCellY, maxCellZ;
+
+    // Scratch state of the current k-nearest query.
+    private int[] bestIds = new int[0];
+    private float[] bestDistances = new float[0];
+
+    /**
+     * @param cellSize edge length of a grid cell in metres; roughly the typical anchor spacing.
+     */
+    AnchorSpatialIndex(float cellSize) {
+        this.cellSize = cellSize;
+        Arrays.fill(cellKeys, EMPTY_KEY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int anchorId) {
+        return anchorId >= 0 && anchorId < present.length && present[anchorId];
+    }
+
+    /**
+     * Inserts an anchor or moves it to a new position.
+     */
+    void update(int anchorId, float x, float y, float z) {
+        ensureCapacity(anchorId + 1);
+        long cell = cellKey(x, y, z);
+        if (present[anchorId]) {
+            positions[3 * anchorId] = x;
+            positions[3 * anchorId + 1] = y;
+            positions[3 * anchorId + 2] = z;
+            if (cellOf[anchorId] == cell) {
+                return;
+            }
+            unlink(anchorId);
+        } else {
+            present[anchorId] = true;
+            size++;
+            positions[3 * anchorId] = x;
+            positions[3 * anchorId + 1] = y;
+            positions[3 * anchorId + 2] = z;
+        }
+        link(anchorId, cell);
+    }
+
+    void remove(int anchorId) {
+        if (!contains(anchorId)) {
+            return;
+        }
+        unlink(anchorId);
+        present[anchorId] = false;
+        size--;
+    }
+
+    void clear() {
+        Arrays.fill(present, false);
+        Arrays.fill(cellKeys, EMPTY_KEY);
+        usedCells = 0;
+        size = 0;
+    }
+
+    /**
+     * Returns the id of the anchor closest to the given point, or -1 if the index is empty.
+     */
+    int nearest(float x, float y, float z) {
+        int[] result = bestIds;
+        if (result.length < 1) {
+            bestIds = result = new int[1];
+            bestDistances = new float[1];
+        }
+        return nearest(x, y, z, 1, result) == 1 ? result[0] : NONE;
+    }
+
+    /**
+     * Writes the ids of up to {@code k} anchors closest to the given point into {@code out},
+     * nearest first, and returns how many were written.
+     */
+    int nearest(float x, float y, float z, int k, int[] out) {
+        if (size == 0 || k <= 0) {
+            return 0;
+        }
+        if (bestDistances.length < k) {
+            bestDistances = new float[k];
+            if (bestIds.length < k) {
+                bestIds = new int[k];
+            }
+        }
+        int found = 0;
+        int cx = cellCoordinate(x);
+        int cy = cellCoordinate(y);
+        int cz = cellCoordinate(z);
+        // Only rings that overlap the occupied cells can hold anchors, and each ring is clipped to
+        // those cells, so a query far away from the anchors stays cheap.
+        int minRing = Math.max(0, Math.max(
+                Math.max(Math.max(minCellX - cx, cx - maxCellX), Math.max(minCellY - cy, cy - maxCellY)),
+                Math.max(minCellZ - cz, cz - maxCellZ)));
+        int maxRing = Math.max(
+                Math.max(Math.max(cx - minCellX, maxCellX - cx), Math.max(cy - minCellY, maxCellY - cy)),
+                Math.max(cz - minCellZ, maxCellZ - cz));
+        for (int ring = minRing; ring <= maxRing; ring++) {
+            // Every anchor outside of the rings searched so far is at least this far away.
+            if (found == k) {
+                float ringDistance = (ring - 1) * cellSize;
+                if (ringDistance > 0 && ringDistance * ringDistance > bestDistances[found - 1]) {
+                    break;
+                }
+            }
+            int fromX = Math.max(-ring, minCellX - cx), toX = Math.min(ring, maxCellX - cx);
+            int fromY = Math.max(-ring, minCellY - cy), toY = Math.min(ring, maxCellY - cy);
+            int fromZ = Math.max(-ring, minCellZ - cz), toZ = Math.min(ring, maxCellZ - cz);
+            for (int dx = fromX; dx <= toX; dx++) {
+                for (int dy = fromY; dy <= toY; dy++) {
+                    if (Math.abs(dx) == ring || Math.abs(dy) == ring) {
+                        for (int dz = fromZ; dz <= toZ; dz++) {
+                            found = scanCell(cx + dx, cy + dy, cz + dz, x, y, z, found, k);
+                        }
+                    } else {
+                        // Inside the shell's x/y extent only its two z faces are new.
+                        if (-ring >= fromZ) {
+                            found = scanCell(cx + dx, cy + dy, cz - ring, x, y, z, found, k);
+                        }
+                        if (ring <= toZ && ring != 0) {
+                            found = scanCell(cx + dx, cy + dy, cz + ring, x, y, z, found, k);
+                        }
+                    }
+                }
+            }
+        }
+        System.arraycopy(bestIds, 0, out, 0, found);
+        return found;
+    }
+
+    private int scanCell(int cellX, int cellY, int cellZ, float x, float y, float z, int found, int k) {
+        for (int id = cellHead(packCell(cellX, cellY, cellZ)); id != NONE; id = next[id]) {
+            found = offer(id, squaredDistance(id, x, y, z), found, k);
+        }
+        return found;
+    }
+
+    /** Inserts a candidate into the sorted best list, returning the new list size. */
+    private int offer(int id, float distance, int found, int k) {
+        if (found == k && distance >= bestDistances[k - 1]) {
+            return found;
+        }
+        int at = found < k ? found++ : k - 1;
+        while (at > 0 && bestDistances[at - 1] > distance) {
+            bestDistances[at] = bestDistances[at - 1];
+            bestIds[at] = bestIds[at - 1];
+            at--;
+        }
+        bestDistances[at] = distance;
+        bestIds[at] = id;
+        return found;
+    }
+
+    private float squaredDistance(int id, float x, float y, float z) {
+        float dx = positions[3 * id] - x;
+        float dy = positions[3 * id + 1] - y;
+        float dz = positions[3 * id + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void link(int anchorId, long cell) {
+        int slot = findSlot(cell);
+        if (cellKeys[slot] == EMPTY_KEY) {
+            cellKeys[slot] = cell;
+            cellHeads[slot] = NONE;
+            usedCells++;
+            growBounds(cell);
+        }
+        int head = cellHeads[slot];
+        next[anchorId] = head;
+        previous[anchorId] = NONE;
+        if (head != NONE) {
+            previous[head] = anchorId;
+        }
+        cellHeads[slot] = anchorId;
+        cellOf[anchorId] = cell;
+        if (usedCells * 2 > cellKeys.length) {
+            rehash(cellKeys.length * 2);
+        }
+    }
+
+    private void unlink(int anchorId) {
+        int before = previous[anchorId];
+        int after = next[anchorId];
+        if (after != NONE) {
+            previous[after] = before;
+        }
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            // Empty cells are kept in the table; they are cheap and anchors rarely leave a cell
+            // for good.
+            cellHeads[findSlot(cellOf[anchorId])] = after;
+        }
+    }
+
+    private int cellHead(long cell) {
+        int slot = findSlot(cell);
+        return cellKeys[slot] == EMPTY_KEY ? NONE : cellHeads[slot];
+    }
+
+    private int findSlot(long cell) {
+        int mask = cellKeys.length - 1;
+        int slot = (int) (mix(cell) & mask);
+        while (cellKeys[slot] != EMPTY_KEY && cellKeys[slot] != cell) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = cellKeys;
+        int[] oldHeads = cellHeads;
+        cellKeys = new long[capacity];
+        cellHeads = new int[capacity];
+        Arrays.fill(cellKeys, EMPTY_KEY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY_KEY) {
+                int slot = findSlot(oldKeys[i]);
+                cellKeys[slot] = oldKeys[i];
+                cellHeads[slot] = oldHeads[i];
+            }
+        }
+    }
+
+    private void growBounds(long cell) {
+        int x = (int) ((cell >>> (2 * CELL_BITS)) & CELL_MASK) - CELL_OFFSET;
+        int y = (int) ((cell >>> CELL_BITS) & CELL_MASK) - CELL_OFFSET;
+        int z = (int) (cell & CELL_MASK) - CELL_OFFSET;
+        if (usedCells == 1) {
+            minCellX = maxCellX = x;
+            minCellY = maxCellY = y;
+            minCellZ = maxCellZ = z;
+            return;
+        }
+        minCellX = Math.min(minCellX, x);
+        minCellY = Math.min(minCellY, y);
+        minCellZ = Math.min(minCellZ, z);
+        maxCellX = Math.max(maxCellX, x);
+        maxCellY = Math.max(maxCellY, y);
+        maxCellZ = Math.max(maxCellZ, z);
+    }
+
+    private void ensureCapacity(int anchorCount) {
+        if (present.length >= anchorCount) {
+            return;
+        }
+        int capacity = Math.max(anchorCount, 2 * present.length);
+        positions = Arrays.copyOf(positions, 3 * capacity);
+        cellOf = Arrays.copyOf(cellOf, capacity);
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        present = Arrays.copyOf(present, capacity);
+    }
+
+    private int cellCoordinate(float value) {
+        return (int) Math.floor(value / cellSize);
+    }
+
+    private long cellKey(float x, float y, float z) {
+        return packCell(cellCoordinate(x), cellCoordinate(y), cellCoordinate(z));
+    }
+
+    private static long packCell(int x, int y, int z) {
+        return ((long) ((x + CELL_OFFSET) & CELL_MASK) << (2 * CELL_BITS))
+                | ((long) ((y + CELL_OFFSET) & CELL_MASK) << CELL_BITS)
+                | ((z + CELL_OFFSET) & CELL_MASK);
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,368 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+
+import com.google.ar.core.examples.java.cloudanchor.InMemoryRoomStore.Room;
+import com.google.ar.core.examples.java.cloudanchor.InMemoryRoomStore.StoredAnchor;
+import com.google.ar.sceneform.math.Vector3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link RoomStore} that remembers the rooms it synced in a {@link RoomCache}. When a listener
+ * registers, the cached room is read on a background thread and handed to the listener unless the
+ * database answered first, so routing can start before it does. When the remote copy arrives it is
+ * compared with the cached one, and an incremental listener is only told about the anchors that
+ * were added, removed or changed and the edges that were added. Rooms carry no version or
+ * timestamp, so the two copies are compared by content. The cache is rewritten on the same
+ * background thread after every change.
+ *
+ * <p>Hosting goes straight to the remote store.
+ */
+class CachingRoomStore implements RoomStore {
+    private final RoomStore remote;
+    private final RoomCache cache;
+    private final Executor callbackExecutor;
+    // Loads and saves the cache, in order.
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+    // Guarded by this, since the background save reads them.
+    @Nullable
+    private ReconcilingListener currentListener = null;
+    private boolean saveQueued = false;
+
+    /**
+     * @param callbackExecutor runs the listener callbacks of cached rooms, like those of the
+     *     remote store
+     */
+    CachingRoomStore(RoomStore remote, RoomCache cache, Executor callbackExecutor) {
+        this.remote = remote;
+        this.cache = cache;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public void getNewRoomCode(RoomCodeListener listener) {
+        remote.getNewRoomCode(listener);
+    }
+
+    @Override
+    public void storeAnchorIdInRoom(Long roomCode, Long roomIdx, String cloudAnchorId, String cloudAnchorName, float[] translation, int zone, List<Edge> newEdges, @Nullable String adjacencySnapshot, AnchorStoredListener listener) {
+        remote.storeAnchorIdInRoom(roomCode, roomIdx, cloudAnchorId, cloudAnchorName, translation, zone, newEdges, adjacencySnapshot, listener);
+    }
+
+    @Override
+    public void registerNewListenerForRoom(Long roomCode, CloudAnchorIdsListener listener) {
+        ReconcilingListener reconciling = register(roomCode, listener, false);
+        remote.registerNewListenerForRoom(roomCode, reconciling);
+    }
+
+    @Override
+    public void registerRoomChangeListener(Long roomCode, RoomChangeListener listener) {
+        ReconcilingListener reconciling = register(roomCode, listener, true);
+        remote.registerRoomChangeListener(roomCode, reconciling);
+    }
+
+    @Override
+    public void clearRoomListener() {
+        synchronized (this) {
+            currentListener = null;
+        }
+        remote.clearRoomListener();
+    }
+
+    @Override
+    public void close() {
+        clearRoomListener();
+        remote.close();
+        // Saves that are already queued still finish.
+        ioExecutor.shutdown();
+    }
+
+    private ReconcilingListener register(Long roomCode, CloudAnchorIdsListener listener, boolean incremental) {
+        ReconcilingListener reconciling = new ReconcilingListener(roomCode, listener, incremental);
+        synchronized (this) {
+            currentListener = reconciling;
+        }
+        ioExecutor.execute(() -> {
+            Room cached = cache.load(roomCode);
+            if (cached != null) {
+                callbackExecutor.execute(() -> reconciling.onCachedRoom(cached));
+            }
+        });
+        return reconciling;
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (saveQueued) {
+                return;
+            }
+            saveQueued = true;
+        }
+        ioExecutor.execute(this::save);
+    }
+
+    private void save() {
+        long roomCode;
+        Room snapshot = new Room();
+        synchronized (this) {
+            saveQueued = false;
+            if (currentListener == null || currentListener.room == null) {
+                return;
+            }
+            roomCode = currentListener.roomCode;
+            // Stored anchors are never changed in place, so copying the map is enough.
+            snapshot.anchors.putAll(currentListener.room.anchors);
+            snapshot.adjacency = currentListener.room.adjacency;
+            snapshot.adjacencyLastIdx = currentListener.room.adjacencyLastIdx;
+        }
+        cache.save(roomCode, snapshot);
+    }
+
+    /**
+     * Sits between the remote store and the app's listener, keeping the room as the app knows it.
+     */
+    private final class ReconcilingListener implements RoomChangeListener {
+        private final long roomCode;
+        private final CloudAnchorIdsListener listener;
+        private final boolean incremental;
+        // What the app listener was handed so far, or null before the first delivery.
+        @Nullable
+        private Room room;
+
+        ReconcilingListener(long roomCode, CloudAnchorIdsListener listener, boolean incremental) {
+            this.roomCode = roomCode;
+            this.listener = listener;
+            this.incremental = incremental;
+        }
+
+        /**
+         * Hands the cached room to the app listener, unless this listener was replaced or the
+         * remote room was delivered first.
+         */
+        void onCachedRoom(Room cached) {
+            synchronized (CachingRoomStore.this) {
+                if (currentListener != this || room != null) {
+                    return;
+                }
+                room = cached;
+            }
+            listener.onCloudAnchorIds(toCloudAnchors(cached), cached.adjacency, cached.adjacencyLastIdx);
+        }
+
+        @Override
+        public void onCloudAnchorIds(
+                ArrayList<CloudAnchor> resolvingAnchors,
+                @Nullable String serializedAdjacency,
+                long adjacencyLastIdx) {
+            Room remoteRoom = new Room();
+            for (CloudAnchor cloudAnchor : resolvingAnchors) {
+                remoteRoom.anchors.put(cloudAnchor.getAnchorId(), toStoredAnchor(cloudAnchor));
+            }
+            remoteRoom.adjacency = serializedAdjacency;
+            remoteRoom.adjacencyLastIdx = adjacencyLastIdx;
+            Room known;
+            synchronized (CachingRoomStore.this) {
+                if (currentListener != this) {
+                    return;
+                }
+                known = room;
+                room = remoteRoom;
+            }
+            if (known == null || !deliverDifference(known, remoteRoom, resolvingAnchors)) {
+                listener.onCloudAnchorIds(resolvingAnchors, serializedAdjacency, adjacencyLastIdx);
+            }
+            scheduleSave();
+        }
+
+        @Override
+        public void onAnchorAdded(CloudAnchor cloudAnchor) {
+            if (!update(toStoredAnchor(cloudAnchor))) {
+                return;
+            }
+            ((RoomChangeListener) listener).onAnchorAdded(cloudAnchor);
+        }
+
+        @Override
+        public void onAnchorEdgesAdded(Long anchorId, List<Edge> newEdges) {
+            synchronized (CachingRoomStore.this) {
+                if (currentListener != this) {
+                    return;
+                }
+                StoredAnchor anchor = room == null ? null : room.anchors.get(anchorId);
+                if (anchor != null) {
+                    Map<Long, Float> edges = new LinkedHashMap<>(anchor.edges);
+                    for (Edge edge : newEdges) {
+                        edges.put(edge.id, edge.weight);
+                    }
+                    room.anchors.put(anchorId, new StoredAnchor(
+                            anchor.idx, anchor.cloudAnchorId, anchor.name, anchor.translation, anchor.zone, edges));
+                }
+            }
+            scheduleSave();
+            ((RoomChangeListener) listener).onAnchorEdgesAdded(anchorId, newEdges);
+        }
+
+        @Override
+        public void onAnchorRemoved(Long anchorId) {
+            synchronized (CachingRoomStore.this) {
+                if (currentListener != this) {
+                    return;
+                }
+                if (room != null) {
+                    room.anchors.remove(anchorId);
+                }
+            }
+            scheduleSave();
+            ((RoomChangeListener) listener).onAnchorRemoved(anchorId);
+        }
+
+        /**
+         * Puts {@code anchor} into the known room, returning false if this listener was replaced.
+         */
+        private boolean update(StoredAnchor anchor) {
+            synchronized (CachingRoomStore.this) {
+                if (currentListener != this) {
+                    return false;
+                }
+                if (room == null) {
+                    room = new Room();
+                }
+                room.anchors.put(anchor.idx, anchor);
+            }
+            scheduleSave();
+            return true;
+        }
+
+        /**
+         * Tells the listener how {@code remoteRoom} differs from the room it knows. Returns false if
+         * the whole room has to be delivered instead, which is the case for a listener that is not
+         * incremental, and for a remote room whose adjacency snapshot does not cover at least what
+         * the known one did.
+         *
+         * <p>A newer snapshot needs no delivery when it only compacts edges that the anchors it
+         * newly covers also published on their own. Older clients publish no edges and only rewrite
+         * the snapshot, so if any of those anchors has no published edges, the whole room is
+         * delivered to pick up the snapshot's edges.
+         */
+        private boolean deliverDifference(Room known, Room remoteRoom, List<CloudAnchor> resolvingAnchors) {
+            boolean sameSnapshot = Objects.equals(known.adjacency, remoteRoom.adjacency)
+                    && known.adjacencyLastIdx == remoteRoom.adjacencyLastIdx;
+            if (!sameSnapshot && remoteRoom.adjacencyLastIdx <= known.adjacencyLastIdx) {
+                return false;
+            }
+            if (!sameSnapshot) {
+                for (StoredAnchor anchor : remoteRoom.anchors
+                        .subMap(known.adjacencyLastIdx, false, remoteRoom.adjacencyLastIdx, true).values()) {
+                    if (anchor.edges.isEmpty()) {
+                        return false;
+                    }
+                }
+            }
+            if (!incremental) {
+                return sameSnapshot && sameAnchors(known, remoteRoom);
+            }
+            RoomChangeListener changeListener = (RoomChangeListener) listener;
+            for (Long anchorId : known.anchors.keySet()) {
+                if (!remoteRoom.anchors.containsKey(anchorId)) {
+                    changeListener.onAnchorRemoved(anchorId);
+                }
+            }
+            for (CloudAnchor cloudAnchor : resolvingAnchors) {
+                StoredAnchor anchor = known.anchors.get(cloudAnchor.getAnchorId());
+                StoredAnchor remoteAnchor = remoteRoom.anchors.get(cloudAnchor.getAnchorId());
+                if (anchor == null) {
+                    changeListener.onAnchorAdded(cloudAnchor);
+                } else if (!sameAnchor(anchor, remoteAnchor)) {
+                    List<Edge> addedEdges = addedEdges(anchor, remoteAnchor);
+                    if (addedEdges != null) {
+                        changeListener.onAnchorEdgesAdded(cloudAnchor.getAnchorId(), addedEdges);
+                    } else {
+                        changeListener.onAnchorRemoved(cloudAnchor.getAnchorId());
+                        changeListener.onAnchorAdded(cloudAnchor);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static ArrayList<CloudAnchor> toCloudAnchors(Room room) {
+        ArrayList<CloudAnchor> cloudAnchors = new ArrayList<>(room.anchors.size());
+        for (StoredAnchor anchor : room.anchors.values()) {
+            cloudAnchors.add(anchor.toCloudAnchor());
+        }
+        return cloudAnchors;
+    }
+
+    private static StoredAnchor toStoredAnchor(CloudAnchor cloudAnchor) {
+        Vector3 translation = cloudAnchor.getMappedTranslation();
+        Map<Long, Float> edges = new LinkedHashMap<>();
+        for (Edge edge : cloudAnchor.getPublishedEdges()) {
+            edges.put(edge.id, edge.weight);
+        }
+        return new StoredAnchor(
+                cloudAnchor.getAnchorId(),
+                cloudAnchor.getCloudAnchorId(),
+                cloudAnchor.getAnchorName(),
+                new float[] {translation.x, translation.y, translation.z},
+                cloudAnchor.getZone(),
+                edges);
+    }
+
+    private static boolean sameAnchors(Room a, Room b) {
+        if (a.anchors.size() != b.anchors.size()) {
+            return false;
+        }
+        for (StoredAnchor anchor : a.anchors.values()) {
+            StoredAnchor other = b.anchors.get(anchor.idx);
+            if (other == null || !sameAnchor(anchor, other)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameAnchor(StoredAnchor a, StoredAnchor b) {
+        return samePlacement(a, b) && a.edges.equals(b.edges);
+    }
+
+    private static boolean samePlacement(StoredAnchor a, StoredAnchor b) {
+        return a.cloudAnchorId.equals(b.cloudAnchorId)
+                && Objects.equals(a.name, b.name)
+                && a.zone == b.zone
+                && Arrays.equals(a.translation, b.translation);
+    }
+
+    /**
+     * Returns the edges {@code after} has in addition to those of {@code before}, or null if the
+     * two differ in any other way.
+     */
+    @Nullable
+    private static List<Edge> addedEdges(StoredAnchor before, StoredAnchor after) {
+        if (!samePlacement(before, after)) {
+            return null;
+        }
+        for (Map.Entry<Long, Float> edge : before.edges.entrySet()) {
+            if (!edge.getValue().equals(after.edges.get(edge.getKey()))) {
+                return null;
+            }
+        }
+        List<Edge> added = new ArrayList<>();
+        for (Map.Entry<Long, Float> edge : after.edges.entrySet()) {
+            if (!before.edges.containsKey(edge.getKey())) {
+                added.add(new Edge(edge.getKey(), edge.getValue()));
+            }
+        }
+        return added;
+    }
+}
@@ -8,6 +8,8 @@ import com.google.ar.sceneform.NodeParent;
 import com.google.ar.sceneform.math.Vector3;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javax.annotation.Nullable;
 
@@ -21,6 +23,10 @@ public class CloudAnchor {
     private Long anchorId;
     private String cloudAnchorId;
     private Vector3 mappedTranslation = null;
+    // Edges this anchor added to the room's adjacency when it was hosted.
+    private List<Edge> publishedEdges = Collections.emptyList();
+    // Zone, usually the floor, the anchor was hosted in.
+    private int zone = 0;
 
 
     public CloudAnchor(Long anchorId, String anchorName, String cloudAnchorId, ArrayList<Float> mappedTranslation) {
@@ -76,4 +82,28 @@ public class CloudAnchor {
     public String getAnchorName() {
         return this.anchorName;
     }
+
+    public Vector3 getMappedTranslation() {
+        return this.mappedTranslation;
+    }
+
+    public void setMappedTranslation(Vector3 mappedTranslation) {
+        this.mappedTranslation = mappedTranslation;
+    }
+
+    public List<Edge> getPublishedEdges() {
+        return this.publishedEdges;
+    }
+
+    public void setPublishedEdges(List<Edge> publishedEdges) {
+        this.publishedEdges = publishedEdges;
+    }
+
+    public int getZone() {
+        return this.zone;
+    }
+
+    public void setZone(int zone) {
+        this.zone = zone;
+    }
 }
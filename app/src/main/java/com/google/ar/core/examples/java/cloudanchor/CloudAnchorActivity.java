@@ -20,7 +20,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 import androidx.fragment.app.DialogFragment;
 
 import com.google.android.filament.gltfio.Animator;
@@ -61,21 +63,22 @@ import com.google.ar.sceneform.math.Quaternion;
 import com.google.ar.sceneform.math.Vector3;
 import com.google.ar.sceneform.rendering.Color;
 import com.google.ar.sceneform.rendering.Material;
-import com.google.ar.sceneform.rendering.MaterialFactory;
+import com.google.ar.sceneform.rendering.MaterialCache;
 import com.google.ar.sceneform.rendering.ModelRenderable;
 import com.google.ar.sceneform.rendering.Renderable;
 import com.google.ar.sceneform.rendering.ShapeFactory;
-import com.google.ar.sceneform.rendering.ViewRenderable;
 import com.google.ar.sceneform.ux.ArFragment;
 import com.google.common.base.Preconditions;
-import com.google.firebase.database.DatabaseError;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 public class CloudAnchorActivity extends AppCompatActivity
         implements NoticeDialogListener {
@@ -126,23 +129,60 @@ public class CloudAnchorActivity extends AppCompatActivity
     private CloudAnchorMap cloudAnchorMap = new CloudAnchorMap();
 
     private final static int ANCHOR_DATA_CODE = 1;
+    // Number of hosted anchors between two compacted adjacency snapshots.
+    private final static int ADJACENCY_SNAPSHOT_INTERVAL = 32;
+    // Number of anchor poses re-read into the spatial index per frame.
+    private final static int POSE_REFRESH_BUDGET = 8;
+    // Follow a resolved room through child events instead of re-reading it on every change.
+    private final static boolean INCREMENTAL_ROOM_SYNC = true;
+    // Once a route is picked, only resolve the anchors along it around the user.
+    private final static boolean RESOLVE_ALONG_ROUTE = true;
+    private final static int ROUTE_RESOLVE_LOOKAHEAD = 4;
+    private final static int ROUTE_RESOLVE_KEEP_BEHIND = 1;
+    // Keep rooms in the app's files instead of Firebase, for trying room sync without the service.
+    private final static boolean OFFLINE_ROOM_STORE = false;
+    // Keep a snapshot of every resolved room on the device, so that it is routable on the next
+    // visit before Firebase answers.
+    private final static boolean CACHE_ROOMS = true;
+    // Every route and edge segment shares one material of this color.
+    private final static Color ROUTE_COLOR = new Color(0, 255, 244);
+    // Anchor names are drawn in full up to the first distance, in meters, as dots up to the second,
+    // and at most this many in full at once. The same holds for the waypoint model.
+    private final static float LABEL_FULL_DISTANCE = 6f;
+    private final static float LABEL_DOT_DISTANCE = 20f;
+    private final static int MAX_FULL_LABELS = 24;
+    private final static float MODEL_FULL_DISTANCE = 15f;
+    private final static float MODEL_DOT_DISTANCE = 50f;
+    private final static int MAX_FULL_MODELS = 1;
+    // Log the route cache and route presenter counters after every route.
+    private final static boolean DEBUG_ROUTES = false;
 
     private ArFragment arFragment;
 
     private Boolean wasNullSession = true;
 
     // Cloud Anchor Components.
-    private FirebaseManager firebaseManager;
+    private RoomStore roomStore;
     private final CloudAnchorManager cloudManager = new CloudAnchorManager();
+    private int lastPendingResolveCount = 0;
+    private NavigationService navigationService;
     private HostResolveMode currentMode;
     private RoomCodeAndCloudAnchorIdListener hostListener;
 
     private final Set<AnimationInstance> animators = new ArraySet<>();
-    private Node waypointNode;
     private Node tempAnchorNode;
-
-    private String anchorName;
-    private ArrayList<String> connectedAnchors;
+    private RoutePresenter routePresenter;
+    private AnchorLabelRenderer labelRenderer;
+    private final VisibilityManager visibilityManager = new VisibilityManager(
+            LABEL_FULL_DISTANCE, LABEL_DOT_DISTANCE, MAX_FULL_LABELS,
+            MODEL_FULL_DISTANCE, MODEL_DOT_DISTANCE, MAX_FULL_MODELS);
+    @Nullable
+    private AnimationInstance waypointAnimation;
+
+    // Anchor whose mapped translation the resolve scheduler currently prioritizes around.
+    private Long resolveFocusAnchorId;
+    private RoomSyncListener roomSyncListener;
+    private RouteResolveWindow routeResolveWindow;
     private Anchor newAnchor;
 
     private static class AnimationInstance {
@@ -174,8 +214,10 @@ public class CloudAnchorActivity extends AppCompatActivity
 
         arFragment = (ArFragment) getSupportFragmentManager().findFragmentById(R.id.ux_fragment);
         initializeScene(arFragment.getArSceneView().getScene());
-        waypointNode = new Node();
         tempAnchorNode = new Node();
+        routePresenter = new RoutePresenter(
+                getApplicationContext(), arFragment.getArSceneView().getScene(), ROUTE_COLOR);
+        labelRenderer = new AnchorLabelRenderer(getApplicationContext(), arFragment.getArSceneView().getScene());
 
         WeakReference<CloudAnchorActivity> weakActivity = new WeakReference<>(this);
 
@@ -235,13 +277,28 @@ public class CloudAnchorActivity extends AppCompatActivity
         roomCodeText = findViewById(R.id.room_code_text);
 
         // Initialize Cloud Anchor variables.
-        firebaseManager = new FirebaseManager(this);
+        if (OFFLINE_ROOM_STORE) {
+            roomStore = new FileRoomStore(
+                    ContextCompat.getMainExecutor(this), new File(getFilesDir(), "rooms"));
+        } else if (CACHE_ROOMS) {
+            roomStore = new CachingRoomStore(
+                    new FirebaseManager(this),
+                    new RoomCache(new File(getCacheDir(), "rooms")),
+                    ContextCompat.getMainExecutor(this));
+        } else {
+            roomStore = new FirebaseManager(this);
+        }
         currentMode = HostResolveMode.NONE;
         sharedPreferences = getSharedPreferences(PREFERENCE_FILE_KEY, Context.MODE_PRIVATE);
 
         dest_dropdown = findViewById(R.id.dest_spinner);
         dest_dropdown.setVisibility(View.GONE);
 
+        navigationService = new NavigationService(cloudAnchorMap);
+        cloudAnchorMap.setRoutingMode(CloudAnchorMap.RoutingMode.A_STAR);
+        // Users pick many destinations from the same few nearby anchors.
+        cloudAnchorMap.setCacheShortestPathTrees(true);
+
     }
 
     private void initializeScene(Scene scene) {
@@ -299,9 +356,12 @@ public class CloudAnchorActivity extends AppCompatActivity
 
 
     private void createDestinationDropdown() {
-        ArrayList<String> items = cloudAnchorMap.getAllNames();
+        // Only offer destinations that are connected to where the user is standing.
+        Long currentAnchorId = getClosestAnchorId();
+        ArrayList<String> items = currentAnchorId == null
+                ? cloudAnchorMap.getAllNames()
+                : cloudAnchorMap.getReachableNames(currentAnchorId);
         items.add(DEST_DROPDOWN_PROMPT);
-        System.out.println("Destination items: " + items.toString());
         final int num_items = items.size() - 1;
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_dropdown_item, items) {
             public View getView(int position, View convertView, ViewGroup parent) {
@@ -343,7 +403,10 @@ public class CloudAnchorActivity extends AppCompatActivity
                     public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                         dest_name[0] = parent.getItemAtPosition(position).toString();
                         if (dest_name[0] != null && !dest_name[0].equals(DEST_DROPDOWN_PROMPT)) {
-                            long source_id = findClosestAnchor();
+                            Long source_id = findClosestAnchor();
+                            if (source_id == null) {
+                                return;
+                            }
                             //renderLineFromCameraToAnchor( cloudAnchorMap.getAnchorNodeById(source_id));
                             System.out.println(dest_name[0]);
                             Toast.makeText(getApplicationContext(), "The option is:" + dest_name[0], Toast.LENGTH_SHORT).show();
@@ -359,25 +422,27 @@ public class CloudAnchorActivity extends AppCompatActivity
 
     }
 
-    private void onReceivedAnchorData(String newAnchorName, ArrayList<String> newConnectedAnchors) {
-        anchorName = newAnchorName;
-        connectedAnchors = newConnectedAnchors;
+    private void onReceivedAnchorData(Anchor placedAnchor, String anchorName, int anchorZone, ArrayList<String> connectedAnchors) {
         Toast.makeText(getApplicationContext(), "Anchor Name is " + anchorName + ", Connected Anchors are " + connectedAnchors.toString(), Toast.LENGTH_SHORT).show();
         wasTappedThisFrame = false;
 
-        cloudManager.hostCloudAnchor(newAnchor, hostListener);
+        if (hostListener != null) {
+            hostListener.host(placedAnchor, anchorName, anchorZone, connectedAnchors);
+        }
     }
 
     private void promptForAnchorName() {
         synchronized (singleTapLock) {
-            anchorName = null;
+            // The next tap replaces newAnchor while this one may still be waiting for its name.
+            Anchor placedAnchor = newAnchor;
             Bundle bundle = new Bundle();
 
             bundle.putStringArrayList("anchorNames", cloudAnchorMap.getAllNames());
 
             PromptAnchorData promptAnchorData = new PromptAnchorData();
             promptAnchorData.setArguments(bundle);
-            promptAnchorData.setOkListener(this::onReceivedAnchorData);
+            promptAnchorData.setOkListener((anchorName, anchorZone, connectedAnchors) ->
+                    onReceivedAnchorData(placedAnchor, anchorName, anchorZone, connectedAnchors));
             promptAnchorData.show(getSupportFragmentManager(), "ResolveDialog");
         }
 
@@ -408,11 +473,26 @@ public class CloudAnchorActivity extends AppCompatActivity
         cloudManager.setSession(arFragment.getArSceneView().getSession());
         // Notify the cloudManager of all the updates.
         cloudManager.onUpdate();
+        // The stats are logged once a batch of resolves is done, not per anchor.
+        int pendingResolves = cloudManager.getPendingResolveCount();
+        if (pendingResolves == 0 && lastPendingResolveCount > 0) {
+            Log.i(TAG, "Cloud anchor stats: " + cloudManager.getStats());
+        }
+        lastPendingResolveCount = pendingResolves;
 
         // If not tracking, don't draw 3d objects.
         if (cameraTrackingState == TrackingState.PAUSED) {
             return;
         }
+        cloudAnchorMap.refreshAnchorPoses(POSE_REFRESH_BUDGET);
+        routePresenter.followAnchors();
+        visibilityManager.beginFrame(arFragment.getArSceneView().getScene().getCamera());
+        labelRenderer.update(
+                arFragment.getArSceneView().getScene().getCamera(), visibilityManager, SystemClock.uptimeMillis());
+        routePresenter.updateLevelOfDetail(visibilityManager);
+        if (currentMode == HostResolveMode.RESOLVING) {
+            updateResolveFocus(camera.getPose());
+        }
         wasTappedThisFrame = false;
     }
 
@@ -420,6 +500,8 @@ public class CloudAnchorActivity extends AppCompatActivity
     protected void onDestroy() {
         // Clear all registered listeners.
         resetMode();
+        roomStore.close();
+        navigationService.shutdown();
 
         if (session != null) {
             // Explicitly close ARCore Session to release native resources.
@@ -608,7 +690,7 @@ public class CloudAnchorActivity extends AppCompatActivity
         snackbarHelper.showMessageWithDismiss(this, getString(R.string.snackbar_on_host));
 
         hostListener = new RoomCodeAndCloudAnchorIdListener();
-        firebaseManager.getNewRoomCode(hostListener);
+        roomStore.getNewRoomCode(hostListener);
     }
 
     /**
@@ -645,45 +727,82 @@ public class CloudAnchorActivity extends AppCompatActivity
         resolveButton.setEnabled(true);
         roomCodeText.setText(R.string.initial_room_code);
         currentMode = HostResolveMode.NONE;
-        firebaseManager.clearRoomListener();
+        roomStore.clearRoomListener();
         hostListener = null;
         setNewAnchor(null, true);
         snackbarHelper.hide(this);
         cloudManager.clearListeners();
+        resolveFocusAnchorId = null;
+        routeResolveWindow = null;
+        roomSyncListener = null;
+        navigationService.cancel();
+        routePresenter.clear();
+        labelRenderer.clear();
         cloudAnchorMap.clear();
     }
 
     private void renderPath(Long sourceId, Long destId) {
         // Need to pass source and destination anchorIds
-        System.out.println("Source id: " + sourceId.toString() + ", Dest id: " + destId.toString());
-        System.out.println(cloudAnchorMap.getAdjacency());
-        List<Long> path = cloudAnchorMap.findPath(sourceId, destId);
-
+        // The search runs in the background; only the geometry is built on the main thread. A newer
+        // selection cancels this search, in which case nothing is rendered for it.
+        navigationService.findPathAsync(sourceId, destId)
+                .thenAcceptAsync(path -> renderPath(sourceId, destId, path), this::runOnUiThread)
+                .exceptionally(
+                        throwable -> {
+                            if (!(throwable instanceof CancellationException)
+                                    && !(throwable.getCause() instanceof CancellationException)) {
+                                Log.e(TAG, "Route search failed", throwable);
+                            }
+                            return null;
+                        });
+    }
 
-        System.out.println("THE PATH: " + path.toString());
+    private void renderPath(Long sourceId, Long destId, List<Long> path) {
+        if (RESOLVE_ALONG_ROUTE && currentMode == HostResolveMode.RESOLVING && !path.isEmpty()) {
+            resolveAlongRoute(path, destId);
+        }
         if (!path.isEmpty() && cloudAnchorMap.size() >= 2) {
-            System.out.println("It has a path");
             Collections.reverse(path);
             path.add(destId);
-            for (int i = 0; i < path.size() - 1; i++) {
-                renderLineBetweenTwoAnchorNodes(cloudAnchorMap.getAnchorNodeById(path.get(i)), cloudAnchorMap.getAnchorNodeById(path.get(i + 1)));
+            List<AnchorNode> anchorNodes = new ArrayList<>(path.size());
+            for (Long anchorId : path) {
+                // Routes run over the whole room, so some hops may not be resolved yet; the line
+                // breaks around them.
+                anchorNodes.add(cloudAnchorMap.getCloudAnchorById(anchorId) == null
+                        ? null : cloudAnchorMap.getAnchorNodeById(anchorId));
+            }
+            routePresenter.showRoute(anchorNodes);
+            if (cloudAnchorMap.getCloudAnchorById(destId) != null) {
+                renderWaypoint(cloudAnchorMap.getAnchorNodeById(destId));
             }
-            renderWaypoint(cloudAnchorMap.getAnchorNodeById(path.get(path.size() - 1)));
         } else {
-            System.out.println("No path found");
+            routePresenter.clear();
+        }
+        if (DEBUG_ROUTES) {
+            RouteCache routeCache = cloudAnchorMap.getRouteCache();
+            Log.d(TAG, "Route cache hits " + routeCache.getHitCount() + ", misses "
+                    + routeCache.getMissCount() + ", evictions " + routeCache.getEvictionCount()
+                    + "; route nodes " + routePresenter.getNodeCount() + " ("
+                    + routePresenter.getActiveNodeCount() + " shown), renderables "
+                    + routePresenter.getRenderableCount() + ", routes " + routePresenter.getRouteCount()
+                    + "; anchors expanded " + navigationService.getLastExpandedCount());
         }
     }
 
     private void renderWaypoint(AnchorNode anchorNode) {
-        // Create the transformable model and add it to the anchor.
-        waypointNode.setParent(anchorNode);
-        waypointNode.setRenderable(waypointRenderable);
+        // Create the transformable model and add it to the anchor. The route presenter takes it
+        // down with the route.
+        Node waypointNode = routePresenter.showWaypoint(anchorNode, waypointRenderable);
         waypointNode.setLocalScale(new Vector3(.2f, .2f, .2f));
 
 
+        // Only the current waypoint is animated.
+        animators.remove(waypointAnimation);
+        waypointAnimation = null;
         FilamentAsset filamentAsset = waypointNode.getRenderableInstance().getFilamentAsset();
         if (filamentAsset.getAnimator().getAnimationCount() > 0) {
-            animators.add(new AnimationInstance(filamentAsset.getAnimator(), 0, System.nanoTime()));
+            waypointAnimation = new AnimationInstance(filamentAsset.getAnimator(), 0, System.nanoTime());
+            animators.add(waypointAnimation);
         }
 
         Color color = new Color(0, 0, 0, 1);
@@ -724,7 +843,7 @@ public class CloudAnchorActivity extends AppCompatActivity
 
          /* Then, create a rectangular prism, using ShapeFactory.makeCube() and use the difference vector
          to extend to the necessary length.  */
-        MaterialFactory.makeOpaqueWithColor(getApplicationContext(), new Color(0, 255, 244))
+        MaterialCache.getInstance().get(getApplicationContext(), MaterialCache.Kind.OPAQUE_COLOR, ROUTE_COLOR)
                 .thenAccept(
                         material -> {
                             /* Then, create a rectangular prism, using ShapeFactory.makeCube() and use the difference vector
@@ -732,6 +851,7 @@ public class CloudAnchorActivity extends AppCompatActivity
                             ModelRenderable model = ShapeFactory.makeCube(
                                     new Vector3(.01f, .01f, difference.length()),
                                     Vector3.zero(), material);
+                            MaterialCache.getInstance().retain(MaterialCache.Kind.OPAQUE_COLOR, ROUTE_COLOR, model);
                             /* Last, set the world rotation of the node to the rotation calculated earlier and set the world position to
                                    the midpoint between the given points . */
                             Node node = new Node();
@@ -757,7 +877,7 @@ public class CloudAnchorActivity extends AppCompatActivity
 
          /* Then, create a rectangular prism, using ShapeFactory.makeCube() and use the difference vector
          to extend to the necessary length.  */
-        MaterialFactory.makeOpaqueWithColor(getApplicationContext(), new Color(0, 255, 244))
+        MaterialCache.getInstance().get(getApplicationContext(), MaterialCache.Kind.OPAQUE_COLOR, ROUTE_COLOR)
                 .thenAccept(
                         material -> {
                             /* Then, create a rectangular prism, using ShapeFactory.makeCube() and use the difference vector
@@ -765,6 +885,7 @@ public class CloudAnchorActivity extends AppCompatActivity
                             ModelRenderable model = ShapeFactory.makeCube(
                                     new Vector3(.01f, .01f, difference.length()),
                                     Vector3.zero(), material);
+                            MaterialCache.getInstance().retain(MaterialCache.Kind.OPAQUE_COLOR, ROUTE_COLOR, model);
                             /* Last, set the world rotation of the node to the rotation calculated earlier and set the world position to
                                    the midpoint between the given points . */
                             Node node = new Node();
@@ -796,50 +917,116 @@ public class CloudAnchorActivity extends AppCompatActivity
         roomCodeText.setText(String.valueOf(roomCode));
         snackbarHelper.showMessageWithDismiss(this, getString(R.string.snackbar_on_resolve));
         Log.i("roomCode", String.valueOf(roomCode));
-        firebaseManager.registerNewListenerForRoom(
-                roomCode,
-                (resolvingAnchors, serializedAdjacency) -> {
-                    CloudAnchorResolveStateListener resolveListener =
-                            new CloudAnchorResolveStateListener(this, roomCode);
-                    Preconditions.checkNotNull(resolveListener, "The resolve listener cannot be null.");
-                    for (int i = 0; i < resolvingAnchors.size(); i++) {
-                        cloudManager.resolveCloudAnchor(
-                                resolvingAnchors.get(i), resolveListener, SystemClock.uptimeMillis());
-                    }
-                    try {
-                        cloudAnchorMap.setAdjacency(serializedAdjacency);
-                    } catch (IOException exception) {
-                        exception.printStackTrace();
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
-        );
+        roomSyncListener = new RoomSyncListener(roomCode);
+        if (INCREMENTAL_ROOM_SYNC) {
+            roomStore.registerRoomChangeListener(roomCode, roomSyncListener);
+        } else {
+            roomStore.registerNewListenerForRoom(roomCode, roomSyncListener);
+        }
     }
 
     /**
-     * Listens for both a new room code and an anchor ID, and shares the anchor ID in Firebase with
-     * the room code when both are available.
+     * Resolves the anchors of a room and keeps its adjacency in sync. With the incremental sync
+     * the whole room only arrives once, and later only the anchors and edges that changed.
      */
-    private final class RoomCodeAndCloudAnchorIdListener
-            implements CloudAnchorManager.CloudAnchorHostListener, FirebaseManager.RoomCodeListener {
+    private final class RoomSyncListener implements RoomStore.RoomChangeListener {
+        private final CloudAnchorResolveStateListener resolveListener;
+
+        RoomSyncListener(long roomCode) {
+            resolveListener = new CloudAnchorResolveStateListener(CloudAnchorActivity.this, roomCode);
+        }
+
+        @Override
+        public void onCloudAnchorIds(
+                ArrayList<CloudAnchor> resolvingAnchors,
+                @Nullable String serializedAdjacency,
+                long adjacencyLastIdx) {
+            for (int i = 0; i < resolvingAnchors.size(); i++) {
+                resolve(resolvingAnchors.get(i));
+            }
+            try {
+                cloudAnchorMap.assembleAdjacency(serializedAdjacency, adjacencyLastIdx, resolvingAnchors);
+            } catch (IOException exception) {
+                exception.printStackTrace();
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onAnchorAdded(CloudAnchor cloudAnchor) {
+            resolve(cloudAnchor);
+            cloudAnchorMap.addPublishedEdges(cloudAnchor.getAnchorId(), cloudAnchor.getPublishedEdges());
+        }
+
+        @Override
+        public void onAnchorEdgesAdded(Long anchorId, List<Edge> newEdges) {
+            cloudAnchorMap.addPublishedEdges(anchorId, newEdges);
+            createDestinationDropdown();
+        }
+
+        @Override
+        public void onAnchorRemoved(Long anchorId) {
+            // Anchor indices are never reused and the adjacency only grows, so a removed anchor
+            // just stops being offered once it fails to resolve.
+            Log.w(TAG, "Anchor " + anchorId + " was removed from the room");
+        }
+
+        private void resolve(CloudAnchor resolvingAnchor) {
+            cloudAnchorMap.registerRoomAnchor(resolvingAnchor);
+            // While navigating, the route window decides what is resolved.
+            if (routeResolveWindow == null) {
+                cloudManager.resolveCloudAnchor(resolvingAnchor, resolveListener, SystemClock.uptimeMillis());
+            }
+        }
+
+        /**
+         * Resolves an anchor of the room that was registered before, unless it is already resolved.
+         */
+        void resolveRoomAnchor(long anchorId) {
+            CloudAnchor roomAnchor = cloudAnchorMap.getRoomAnchor(anchorId);
+            if (roomAnchor != null && cloudAnchorMap.getCloudAnchorById(anchorId) == null) {
+                cloudManager.resolveCloudAnchor(roomAnchor, resolveListener, SystemClock.uptimeMillis());
+            }
+        }
+
+        /**
+         * Detaches an anchor of the room, which stays routable and can be resolved again.
+         */
+        void releaseRoomAnchor(long anchorId) {
+            CloudAnchor roomAnchor = cloudAnchorMap.getRoomAnchor(anchorId);
+            if (roomAnchor != null) {
+                cloudManager.releaseResolve(roomAnchor.getCloudAnchorId());
+                cloudAnchorMap.releaseAnchor(anchorId);
+                labelRenderer.removeLabel(anchorId);
+            }
+        }
+    }
+
+    /**
+     * Listens for a new room code, hosts the anchors placed in that room, and shares each anchor ID
+     * in Firebase once it is hosted. Several anchors can be uploading at once. Each one takes the
+     * next room index when it is placed, so indices follow the order the user placed the anchors in,
+     * whatever order the hosts finish in.
+     */
+    private final class RoomCodeAndCloudAnchorIdListener implements RoomStore.RoomCodeListener {
 
-        private Context context;
         private Long roomCode;
-        private Long roomIdx;
-        private String cloudAnchorId;
-        private Pose cloudAnchorPose;
+        private Long nextRoomIdx;
+        // Room indices that are done but not contiguous yet, and the end of the prefix of indices
+        // that are all done.
+        private final Set<Long> doneRoomIdx = new HashSet<>();
+        private long donePrefixEnd = 0;
+        private long lastSnapshotPrefixEnd = 0;
 
         @Override
-        public void onNewRoomCode(Context currentContext, Long newRoomCode) {
+        public void onNewRoomCode(Long newRoomCode) {
             Preconditions.checkState(roomCode == null, "The room code cannot have been set before.");
-            context = currentContext;
             roomCode = newRoomCode;
-            roomIdx = 0L;
+            nextRoomIdx = 0L;
             roomCodeText.setText(String.valueOf(roomCode));
             snackbarHelper.showMessageWithDismiss(
                     CloudAnchorActivity.this, getString(R.string.snackbar_room_code_available));
-            checkAndMaybeShare();
             synchronized (singleTapLock) {
                 // Change currentMode to HOSTING after receiving the room code (not when the 'Host' button
                 // is tapped), to prevent an anchor being placed before we know the room code and able to
@@ -849,64 +1036,95 @@ public class CloudAnchorActivity extends AppCompatActivity
         }
 
         @Override
-        public void onError(DatabaseError error) {
-            Log.w(TAG, "A Firebase database error happened.", error.toException());
+        public void onError(RoomStoreError error) {
+            Log.w(TAG, "A room store error happened.", error.toException());
             snackbarHelper.showError(
                     CloudAnchorActivity.this, getString(R.string.snackbar_firebase_error));
         }
 
-        @Override
-        public void onCloudTaskComplete(Anchor anchor) {
-            CloudAnchorState cloudState = anchor.getCloudAnchorState();
+        /**
+         * Hosts {@code placedAnchor} under the next room index.
+         */
+        void host(Anchor placedAnchor, String anchorName, int anchorZone, ArrayList<String> connectedAnchors) {
+            Preconditions.checkState(roomCode != null, "Anchors are only placed once the room code is known.");
+            long roomIdx = nextRoomIdx++;
+            cloudManager.hostCloudAnchor(
+                    placedAnchor,
+                    hostedAnchor -> onHosted(roomIdx, hostedAnchor, anchorName, anchorZone, connectedAnchors));
+        }
+
+        private void onHosted(
+                long roomIdx, Anchor hostedAnchor, String anchorName, int anchorZone, ArrayList<String> connectedAnchors) {
+            if (hostListener != this) {
+                // Hosting was cancelled while this anchor was uploading.
+                return;
+            }
+            CloudAnchorState cloudState = hostedAnchor.getCloudAnchorState();
             if (cloudState.isError()) {
                 Log.e(TAG, "Error hosting a cloud anchor, state " + cloudState);
                 snackbarHelper.showMessageWithDismiss(
                         CloudAnchorActivity.this, getString(R.string.snackbar_host_error, cloudState));
+                // The index stays unused; readers skip indices without an anchor.
+                markDone(roomIdx);
                 return;
             }
-            Preconditions.checkState(
-                    cloudAnchorId == null, "The cloud anchor ID cannot have been set before.");
-            cloudAnchorId = anchor.getCloudAnchorId();
-            cloudAnchorPose = anchor.getPose();
-            setNewAnchor(anchor);
-            checkAndMaybeShare();
-        }
-
-        private void checkAndMaybeShare() {
-            if (roomCode == null || roomIdx == null || cloudAnchorId == null || cloudAnchorPose == null) {
-                return;
-            }
+            String cloudAnchorId = hostedAnchor.getCloudAnchorId();
+            Pose cloudAnchorPose = hostedAnchor.getPose();
 
-            CloudAnchor cloudAnchor = new CloudAnchor(anchor, anchorName, cloudAnchorId, roomIdx, arFragment.getArSceneView().getScene());
+            CloudAnchor cloudAnchor = new CloudAnchor(hostedAnchor, anchorName, cloudAnchorId, roomIdx, arFragment.getArSceneView().getScene());
+            cloudAnchor.setMappedTranslation(new Vector3(
+                    cloudAnchorPose.tx(), cloudAnchorPose.ty(), cloudAnchorPose.tz()));
+            cloudAnchor.setZone(anchorZone);
 
             setNewAnchor(false, cloudAnchor);
-//            cloudAnchorMap.add(cloudAnchor, false);
 
             ArrayList<Long> connectedAnchorIds = cloudAnchorMap.getIdsFromNames(connectedAnchors);
+            ArrayList<Edge> newEdges = new ArrayList<>();
             for (Long id : connectedAnchorIds) {
                 //change weight to distance
                 cloudAnchorMap.createEdge(roomIdx, id, 1.0f);
+                newEdges.add(new Edge(id, 1.0f));
                 AnchorNode anchorNode = cloudAnchorMap.getAnchorNodeById(id);
                 renderLineBetweenTwoAnchorNodes(anchorNode, cloudAnchor.getAnchorNode());
             }
-            String serializedAdjacency = "";
-            try {
-                serializedAdjacency = cloudAnchorMap.serializeAdjacency();
-            } catch (IOException exception) {
-                exception.printStackTrace();
+            markDone(roomIdx);
+            // Only this anchor's edges are uploaded; a full snapshot is compacted in now and then so
+            // that readers do not have to replay every anchor's edges. A snapshot must cover exactly
+            // the anchors up to its index, so it is only taken while no earlier anchor is uploading
+            // and no later one is done.
+            String adjacencySnapshot = null;
+            if (donePrefixEnd == roomIdx + 1
+                    && doneRoomIdx.isEmpty()
+                    && donePrefixEnd - lastSnapshotPrefixEnd >= ADJACENCY_SNAPSHOT_INTERVAL) {
+                try {
+                    adjacencySnapshot = cloudAnchorMap.serializeAdjacency();
+                    lastSnapshotPrefixEnd = donePrefixEnd;
+                } catch (IOException exception) {
+                    exception.printStackTrace();
+                }
             }
-            firebaseManager.storeAnchorIdInRoom(roomCode, roomIdx, cloudAnchorId, anchorName, cloudAnchorPose, serializedAdjacency);
+            roomStore.storeAnchorIdInRoom(roomCode, roomIdx, cloudAnchorId, anchorName, cloudAnchorPose.getTranslation(), anchorZone, newEdges, adjacencySnapshot, this::onAnchorStored);
+        }
 
-            roomIdx++;
+        private void onAnchorStored(Long roomIdx, @Nullable RoomStoreError error) {
+            if (hostListener != this) {
+                return;
+            }
+            if (error != null) {
+                snackbarHelper.showError(
+                        CloudAnchorActivity.this, getString(R.string.snackbar_firebase_error));
+                return;
+            }
+            // Only now is the anchor durable and visible to other devices.
             snackbarHelper.showMessageWithDismiss(
                     CloudAnchorActivity.this, getString(R.string.snackbar_cloud_id_shared));
-            reset();
         }
 
-        private void reset() {
-            setNewAnchor(null, false);
-            cloudAnchorId = null;
-            cloudAnchorPose = null;
+        private void markDone(long roomIdx) {
+            doneRoomIdx.add(roomIdx);
+            while (doneRoomIdx.remove(donePrefixEnd)) {
+                donePrefixEnd++;
+            }
         }
     }
 
@@ -922,9 +1140,12 @@ public class CloudAnchorActivity extends AppCompatActivity
 
         @Override
         public void onCloudTaskComplete(CloudAnchor cloudAnchor) {
-            // When the anchor has been resolved, or had a final error state.
+            // When the anchor has been resolved, or had a final error state. An anchor whose last
+            // attempt timed out was given up on while still in progress.
             CloudAnchorState cloudState = cloudAnchor.getAnchor().getCloudAnchorState();
-            if (cloudState.isError()) {
+            if (cloudState.isError()
+                    || cloudManager.getResolveState(cloudAnchor.getCloudAnchorId())
+                            == CloudAnchorManager.ResolveState.FAILED) {
                 Log.w(
                         TAG,
                         "The anchor in room "
@@ -962,51 +1183,77 @@ public class CloudAnchorActivity extends AppCompatActivity
     }
 
     public void renderAnchorName(CloudAnchor cloudAnchor) {
+        labelRenderer.setLabel(cloudAnchor.getAnchorId(), cloudAnchor.getAnchorNode(), cloudAnchor.getAnchorName());
+    }
 
-        ViewRenderable.builder().setView(arFragment.getContext(), R.layout.anchor_name_display)
-                .build()
-                .thenAccept(
-                        viewRenderable -> {
-                            viewRenderable.setShadowCaster(false);
-                            viewRenderable.setShadowReceiver(false);
-                            Node nameNode = new Node();
-                            nameNode.setParent(cloudAnchor.getAnchorNode());
-                            nameNode.setRenderable(viewRenderable);
-                            nameNode.setLocalScale(new Vector3(1f, 1f, 1f));
-                            TextView textView = viewRenderable.getView().findViewById(R.id.anchor_name);
-                            textView.setText(cloudAnchor.getAnchorName());
-                            nameNode.setLocalPosition(new Vector3(0f, 1f, 0f));
-
-                        }).exceptionally(
-                throwable -> {
-                    Toast toast =
-                            Toast.makeText(this, "Unable to make anchor name display", Toast.LENGTH_LONG);
-                    toast.setGravity(Gravity.CENTER, 0, 0);
-                    toast.show();
-                    return null;
+    /**
+     * Switches resolving to the anchors along {@code path}, in the shape returned by
+     * {@link CloudAnchorMap#findPath}. Resolves of anchors off the route that have not started are
+     * dropped, and anchors of the previous route that are not on this one are released.
+     */
+    private void resolveAlongRoute(List<Long> path, Long destId) {
+        List<Long> route = new ArrayList<>(path);
+        Collections.reverse(route);
+        route.add(destId);
+        RouteResolveWindow window = new RouteResolveWindow(
+                route,
+                ROUTE_RESOLVE_LOOKAHEAD,
+                ROUTE_RESOLVE_KEEP_BEHIND,
+                new RouteResolveWindow.Resolver() {
+                    @Override
+                    public void resolve(long anchorId) {
+                        roomSyncListener.resolveRoomAnchor(anchorId);
+                    }
+
+                    @Override
+                    public void release(long anchorId) {
+                        roomSyncListener.releaseRoomAnchor(anchorId);
+                    }
                 });
+        cloudManager.cancelPendingResolves();
+        window.start();
+        if (routeResolveWindow != null) {
+            routeResolveWindow.releaseAll(window);
+        }
+        routeResolveWindow = window;
     }
 
-    public Long findClosestAnchor() {
-        Pose cameraPose = arFragment.getArSceneView().getArFrame().getCamera().getPose();
-        Long minDistCloudAnchorId = null;
-        float minDistance = Float.MAX_VALUE;
-        for (Long cloudAnchorId : cloudAnchorMap.getAnchorIds()) {
-            AnchorNode currAnchorNode = cloudAnchorMap.getAnchorNodeById(cloudAnchorId);
-            Pose anchorPose = currAnchorNode.getAnchor().getPose();
-
-            float dx = anchorPose.tx() - cameraPose.tx();
-            float dy = anchorPose.ty() - cameraPose.ty();
-            float dz = anchorPose.tz() - cameraPose.tz();
-
-            ///Compute the straight-line distance.
-            float distanceToAnchor = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
-            if (distanceToAnchor < minDistance) {
-                minDistance = distanceToAnchor;
-                minDistCloudAnchorId = cloudAnchorId;
-            }
+    /**
+     * Resolves the anchors around the resolved anchor the user is closest to first. Mapped
+     * translations and the session's world frame are not aligned, so the user's position is only
+     * estimated by that anchor's mapped translation.
+     */
+    private void updateResolveFocus(Pose cameraPose) {
+        Long closestAnchorId = cloudAnchorMap.findClosestAnchor(cameraPose.tx(), cameraPose.ty(), cameraPose.tz());
+        if (closestAnchorId == null || closestAnchorId.equals(resolveFocusAnchorId)) {
+            return;
+        }
+        resolveFocusAnchorId = closestAnchorId;
+        if (routeResolveWindow != null) {
+            routeResolveWindow.onUserNear(closestAnchorId);
+        }
+        Vector3 mappedTranslation = cloudAnchorMap.getCloudAnchorById(closestAnchorId).getMappedTranslation();
+        if (mappedTranslation != null) {
+            cloudManager.setResolveFocus(mappedTranslation);
+        }
+    }
 
+    /**
+     * Returns the id of the anchor closest to the camera, or null if there is no frame or anchor yet.
+     */
+    private Long getClosestAnchorId() {
+        Frame frame = arFragment.getArSceneView().getArFrame();
+        if (frame == null) {
+            return null;
+        }
+        Pose cameraPose = frame.getCamera().getPose();
+        return cloudAnchorMap.findClosestAnchor(cameraPose.tx(), cameraPose.ty(), cameraPose.tz());
+    }
 
+    public Long findClosestAnchor() {
+        Long minDistCloudAnchorId = getClosestAnchorId();
+        if (minDistCloudAnchorId == null) {
+            return null;
         }
 
         CloudAnchor minDistCloudAnchor = cloudAnchorMap.getCloudAnchorById(minDistCloudAnchorId);
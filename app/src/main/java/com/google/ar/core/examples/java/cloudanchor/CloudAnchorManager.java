@@ -8,21 +8,31 @@ import androidx.annotation.Nullable;
 import com.google.ar.core.Anchor;
 import com.google.ar.core.Anchor.CloudAnchorState;
 import com.google.ar.core.Session;
+import com.google.ar.sceneform.math.Vector3;
 import com.google.common.base.Preconditions;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 
 /**
  * A helper class to handle all the Cloud Anchors logic, and add a callback-like mechanism on top of
  * the existing ARCore API.
+ *
+ * <p>Not thread safe: every method must be called on the thread that calls {@link #onUpdate}, which
+ * is the UI thread in this app. That keeps the per-frame poll free of locking.
  */
 class CloudAnchorManager {
     private static final String TAG =
             CloudAnchorActivity.class.getSimpleName() + "." + CloudAnchorManager.class.getSimpleName();
     private static final long DURATION_FOR_NO_RESOLVE_RESULT_MS = 10000;
-    private long deadlineForMessageMillis;
+    private static final int DEFAULT_MAX_CONCURRENT_RESOLVES = 4;
+    private static final int DEFAULT_MAX_CONCURRENT_HOSTS = 3;
+    // An attempt that has not finished by then is started again, while attempts are left.
+    private static final long RESOLVE_ATTEMPT_TIMEOUT_MS = 30000;
+    private static final int MAX_RESOLVE_ATTEMPTS = 4;
+    private static final long INITIAL_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 16000;
 
     /**
      * Listener for the results of a host operation.
@@ -51,88 +61,449 @@ class CloudAnchorManager {
         void onShowResolveMessage();
     }
 
+    /**
+     * Where the resolve of a cloud anchor ID stands.
+     */
+    enum ResolveState {
+        /** Requested, but not sent to ARCore yet. */
+        PENDING,
+        /** ARCore is resolving the anchor. */
+        IN_FLIGHT,
+        /** The anchor was resolved. */
+        RESOLVED,
+        /** ARCore returned an error, or the last attempt timed out; a new request starts over. */
+        FAILED,
+    }
+
+    /**
+     * One anchor to host, with the listener that wants its result.
+     */
+    private static final class HostTask {
+        final Anchor localAnchor;
+        final CloudAnchorHostListener listener;
+        Anchor hostedAnchor;
+        long startMillis;
+
+        HostTask(Anchor localAnchor, CloudAnchorHostListener listener) {
+            this.localAnchor = localAnchor;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The resolve of one cloud anchor ID, shared by every request for it.
+     */
+    private static final class ResolveTask {
+        final CloudAnchor cloudAnchor;
+        ResolveState state = ResolveState.PENDING;
+        final ArrayList<CloudAnchorResolveListener> listeners = new ArrayList<>();
+        // Listeners before this index have been told the result.
+        int notifiedListeners = 0;
+        int attempts = 0;
+        long firstAttemptMillis;
+        long attemptDeadlineMillis;
+        // A pending task waiting for a retry is not started before this time.
+        long retryAtMillis = 0;
+        // When the first listener is told that resolving takes long.
+        long messageDeadlineMillis;
+        boolean messageShown = false;
+
+        ResolveTask(CloudAnchor cloudAnchor) {
+            this.cloudAnchor = cloudAnchor;
+        }
+    }
+
     @Nullable
     private Session session = null;
-    private final HashMap<Anchor, CloudAnchorHostListener> pendingHostAnchors = new HashMap<>();
-    private final HashMap<CloudAnchor, CloudAnchorResolveListener> pendingResolveAnchors = new HashMap<>();
+    // Hosts waiting for a slot, in request order, and the hosts ARCore is running.
+    private final ArrayDeque<HostTask> queuedHostTasks = new ArrayDeque<>();
+    private final ArrayList<HostTask> inFlightHostTasks = new ArrayList<>();
+    private final ArrayList<HostTask> finishedHostTasks = new ArrayList<>();
+    private int maxConcurrentHosts = DEFAULT_MAX_CONCURRENT_HOSTS;
+    private final CloudAnchorStats stats = new CloudAnchorStats();
+    // Every resolve requested in this session, keyed by cloud anchor ID.
+    private final HashMap<String, ResolveTask> resolveTasks = new HashMap<>();
+    // Tasks ARCore is resolving; the only ones whose state is polled.
+    private final ArrayList<ResolveTask> inFlightResolveTasks = new ArrayList<>();
+    // Tasks with listeners that have not been told the result yet.
+    private final ArrayList<ResolveTask> finishedResolveTasks = new ArrayList<>();
+    // Tasks whose first listener is due the message that resolving takes long.
+    private final ArrayList<ResolveTask> slowResolveTasks = new ArrayList<>();
+    // Tasks waiting for one of the concurrent resolve slots.
+    private final ArrayList<ResolveTask> pendingResolveTasks = new ArrayList<>();
+    private int maxConcurrentResolves = DEFAULT_MAX_CONCURRENT_RESOLVES;
+    // Pending anchors closest to this mapped translation are resolved first.
+    @Nullable
+    private Vector3 resolveFocus = null;
+    private boolean resolveFocusFromCaller = false;
 
     /**
      * This method is used to set the session, since it might not be available when this object is
      * created.
      */
-    synchronized void setSession(Session session) {
+    void setSession(Session session) {
         this.session = session;
     }
 
     /**
      * This method hosts an anchor. The {@code listener} will be invoked when the results are
-     * available.
+     * available. Several anchors can be hosted at once, each with its own listener; beyond
+     * {@link #setMaxConcurrentHosts} they wait and start in request order.
      */
-    synchronized void hostCloudAnchor(Anchor anchor, CloudAnchorHostListener listener) {
+    void hostCloudAnchor(Anchor anchor, CloudAnchorHostListener listener) {
         Preconditions.checkNotNull(session, "The session cannot be null.");
-        Anchor newAnchor = session.hostCloudAnchor(anchor);
-        if (pendingHostAnchors.isEmpty())
-            pendingHostAnchors.put(newAnchor, listener);
+        queuedHostTasks.add(new HostTask(anchor, listener));
+        startQueuedHosts(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Limits how many anchors are uploaded at the same time.
+     */
+    void setMaxConcurrentHosts(int maxConcurrentHosts) {
+        Preconditions.checkArgument(maxConcurrentHosts > 0, "At least one host must run.");
+        this.maxConcurrentHosts = maxConcurrentHosts;
+        if (session != null) {
+            startQueuedHosts(SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Returns how many anchors are being hosted or wait to be.
+     */
+    int getPendingHostCount() {
+        return queuedHostTasks.size() + inFlightHostTasks.size();
+    }
+
+    /**
+     * Returns how many anchors are being resolved or wait to be, including those waiting for a
+     * retry.
+     */
+    int getPendingResolveCount() {
+        return pendingResolveTasks.size() + inFlightResolveTasks.size();
+    }
+
+    private void startQueuedHosts(long nowMillis) {
+        while (inFlightHostTasks.size() < maxConcurrentHosts && !queuedHostTasks.isEmpty()) {
+            HostTask task = queuedHostTasks.poll();
+            task.hostedAnchor = session.hostCloudAnchor(task.localAnchor);
+            task.startMillis = nowMillis;
+            inFlightHostTasks.add(task);
+        }
+    }
+
+    /**
+     * Returns the latency histograms and counters of the hosts and resolves so far.
+     */
+    CloudAnchorStats getStats() {
+        return stats;
     }
 
     /**
      * This method resolves an anchor. The {@code listener} will be invoked when the results are
-     * available.
+     * available. Requests for a cloud anchor ID that is already being resolved, or was resolved,
+     * join that work instead of sending another request to ARCore; each listener is told the result
+     * once. Only an ID whose last resolve failed is resolved again. At most
+     * {@link #setMaxConcurrentResolves} resolves run at once. Attempts that end in a retryable
+     * error or do not finish in time are retried with exponential backoff, up to
+     * {@link #MAX_RESOLVE_ATTEMPTS} attempts.
      */
-    synchronized void resolveCloudAnchor(
+    void resolveCloudAnchor(
             CloudAnchor cloudAnchor, CloudAnchorResolveListener listener, long startTimeMillis) {
-        Log.w(TAG, "resolveCloudAnchor: " + cloudAnchor.getAnchorId(), null);
         Preconditions.checkNotNull(session, "The session cannot be null.");
-        Anchor newAnchor = session.resolveCloudAnchor(cloudAnchor.getCloudAnchorId());
-        cloudAnchor.setAnchor(newAnchor);
-        Log.w(TAG, "resolveCloudAnchor: " + newAnchor.getPose().toString(), null);
-        deadlineForMessageMillis = startTimeMillis + DURATION_FOR_NO_RESOLVE_RESULT_MS;
-        pendingResolveAnchors.put(cloudAnchor, listener);
+        String cloudAnchorId = cloudAnchor.getCloudAnchorId();
+        ResolveTask task = resolveTasks.get(cloudAnchorId);
+        if (task != null && task.state != ResolveState.FAILED) {
+            if (!task.listeners.contains(listener)) {
+                task.listeners.add(listener);
+                // A task in flight tells its listeners when it finishes; a resolved one is not
+                // polled anymore, so the new listener is told on the next update.
+                if (task.state == ResolveState.RESOLVED && !finishedResolveTasks.contains(task)) {
+                    finishedResolveTasks.add(task);
+                }
+            }
+            Log.d(TAG, "resolveCloudAnchor: " + cloudAnchor.getAnchorId() + " is already " + task.state);
+            return;
+        }
+        task = new ResolveTask(cloudAnchor);
+        task.listeners.add(listener);
+        task.messageDeadlineMillis = startTimeMillis + DURATION_FOR_NO_RESOLVE_RESULT_MS;
+        resolveTasks.put(cloudAnchorId, task);
+        pendingResolveTasks.add(task);
+        startPendingResolves(SystemClock.uptimeMillis());
     }
 
     /**
-     * Should be called after a {@link Session#update()} call.
+     * Limits how many resolves ARCore runs at the same time; the rest wait in {@link
+     * ResolveState#PENDING}. Fewer concurrent resolves leave more bandwidth for the ones the user
+     * needs first.
      */
+    void setMaxConcurrentResolves(int maxConcurrentResolves) {
+        Preconditions.checkArgument(maxConcurrentResolves > 0, "At least one resolve must run.");
+        this.maxConcurrentResolves = maxConcurrentResolves;
+        if (session != null) {
+            startPendingResolves(SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Sets the user's estimated position in the coordinates of the mapped translations. Pending
+     * anchors are resolved nearest first. Until this is called the mapped translation of the last
+     * resolved anchor is used, and before any anchor is resolved they start in request order.
+     */
+    void setResolveFocus(Vector3 mappedPosition) {
+        resolveFocus = mappedPosition;
+        resolveFocusFromCaller = true;
+    }
 
-    synchronized void onUpdate() {
+    /**
+     * Starts the nearest pending resolves while there are free slots. Pending tasks are scanned
+     * each time, so a moved focus takes effect with the next free slot. Tasks waiting for a retry
+     * are skipped until their backoff has passed.
+     */
+    private void startPendingResolves(long nowMillis) {
+        while (inFlightResolveTasks.size() < maxConcurrentResolves && !pendingResolveTasks.isEmpty()) {
+            int next = -1;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < pendingResolveTasks.size(); i++) {
+                ResolveTask task = pendingResolveTasks.get(i);
+                if (task.retryAtMillis > nowMillis) {
+                    continue;
+                }
+                if (resolveFocus == null) {
+                    next = i;
+                    break;
+                }
+                float distance = squaredDistanceToFocus(task.cloudAnchor);
+                if (next < 0 || distance < nearestDistance) {
+                    nearestDistance = distance;
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                return;
+            }
+            ResolveTask task = pendingResolveTasks.get(next);
+            int last = pendingResolveTasks.size() - 1;
+            pendingResolveTasks.set(next, pendingResolveTasks.get(last));
+            pendingResolveTasks.remove(last);
+            startResolve(task, nowMillis);
+        }
+    }
+
+    private float squaredDistanceToFocus(CloudAnchor cloudAnchor) {
+        Vector3 translation = cloudAnchor.getMappedTranslation();
+        if (translation == null) {
+            return Float.MAX_VALUE;
+        }
+        float dx = translation.x - resolveFocus.x;
+        float dy = translation.y - resolveFocus.y;
+        float dz = translation.z - resolveFocus.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Forgets the resolve of {@code cloudAnchorId} and detaches its anchor, whatever state it was
+     * in, to free ARCore tracking resources. A later request resolves it from scratch.
+     */
+    void releaseResolve(String cloudAnchorId) {
+        ResolveTask task = resolveTasks.remove(cloudAnchorId);
+        if (task == null) {
+            return;
+        }
+        if (task.state == ResolveState.PENDING) {
+            pendingResolveTasks.remove(task);
+        } else if (task.state == ResolveState.IN_FLIGHT) {
+            inFlightResolveTasks.remove(task);
+        }
+        if (task.state != ResolveState.PENDING && task.cloudAnchor.getAnchor() != null) {
+            task.cloudAnchor.getAnchor().detach();
+        }
+        finishedResolveTasks.remove(task);
+        slowResolveTasks.remove(task);
+        if (session != null) {
+            startPendingResolves(SystemClock.uptimeMillis());
+        }
+    }
+
+    /**
+     * Drops every resolve that has not been sent to ARCore yet, for when only a subset of the room
+     * is needed after all.
+     */
+    void cancelPendingResolves() {
+        for (ResolveTask task : pendingResolveTasks) {
+            resolveTasks.remove(task.cloudAnchor.getCloudAnchorId());
+        }
+        pendingResolveTasks.clear();
+    }
+
+    /**
+     * Returns the state of the resolve of {@code cloudAnchorId}, or null if it was never requested.
+     */
+    @Nullable
+    ResolveState getResolveState(String cloudAnchorId) {
+        ResolveTask task = resolveTasks.get(cloudAnchorId);
+        return task == null ? null : task.state;
+    }
+
+    private void startResolve(ResolveTask task, long nowMillis) {
+        Log.w(TAG, "resolveCloudAnchor: " + task.cloudAnchor.getAnchorId() + ", attempt " + (task.attempts + 1), null);
+        Anchor newAnchor = session.resolveCloudAnchor(task.cloudAnchor.getCloudAnchorId());
+        task.cloudAnchor.setAnchor(newAnchor);
+        task.state = ResolveState.IN_FLIGHT;
+        if (task.attempts == 0) {
+            task.firstAttemptMillis = nowMillis;
+        }
+        task.attempts++;
+        task.attemptDeadlineMillis = nowMillis + RESOLVE_ATTEMPT_TIMEOUT_MS;
+        stats.onResolveAttempt(task.attempts > 1);
+        inFlightResolveTasks.add(task);
+    }
+
+    /**
+     * Gives up on the attempt in flight and queues the next one after an exponential backoff. The
+     * caller has taken the task out of {@link #inFlightResolveTasks}.
+     */
+    private void scheduleRetry(ResolveTask task, long nowMillis) {
+        task.cloudAnchor.getAnchor().detach();
+        task.state = ResolveState.PENDING;
+        task.retryAtMillis =
+                nowMillis + Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << (task.attempts - 1));
+        pendingResolveTasks.add(task);
+    }
+
+    /**
+     * Should be called after a {@link Session#update()} call. Reads the state of each anchor being
+     * hosted or resolved once, and calls listeners only when a task finishes, or once when a
+     * resolve takes long. Nothing is allocated or logged while tasks are still in progress.
+     */
+    void onUpdate() {
         Preconditions.checkNotNull(session, "The session cannot be null.");
-        Iterator<Map.Entry<Anchor, CloudAnchorHostListener>> hostIter =
-                pendingHostAnchors.entrySet().iterator();
-        while (hostIter.hasNext()) {
-            Map.Entry<Anchor, CloudAnchorHostListener> entry = hostIter.next();
-            Anchor anchor = entry.getKey();
-            if (isReturnableState(anchor.getCloudAnchorState())) {
-                CloudAnchorHostListener listener = entry.getValue();
-                listener.onCloudTaskComplete(anchor);
-                Log.i("anchor", "anchor inserted: " + anchor.getCloudAnchorId());
-                hostIter.remove();
+        int polls = 0;
+        if (inFlightHostTasks.isEmpty()
+                && inFlightResolveTasks.isEmpty()
+                && pendingResolveTasks.isEmpty()
+                && finishedResolveTasks.isEmpty()) {
+            return;
+        }
+        long nowMillis = SystemClock.uptimeMillis();
+        // Lists are walked backwards so that finished tasks can be removed in place.
+        for (int i = inFlightHostTasks.size() - 1; i >= 0; i--) {
+            HostTask task = inFlightHostTasks.get(i);
+            CloudAnchorState hostState = task.hostedAnchor.getCloudAnchorState();
+            polls++;
+            if (!isReturnableState(hostState)) {
+                continue;
             }
+            if (hostState.isError()) {
+                stats.onHostFailure();
+            } else {
+                stats.getHostLatency().record(nowMillis - task.startMillis);
+            }
+            finishedHostTasks.add(task);
+            inFlightHostTasks.remove(i);
         }
+        startQueuedHosts(nowMillis);
 
-        Iterator<Map.Entry<CloudAnchor, CloudAnchorResolveListener>> resolveIter =
-                pendingResolveAnchors.entrySet().iterator();
-        while (resolveIter.hasNext()) {
-            Map.Entry<CloudAnchor, CloudAnchorResolveListener> entry = resolveIter.next();
-            CloudAnchorResolveListener listener = entry.getValue();
-            Log.i("anchor", "anchor resolving: " + entry.getKey().getCloudAnchorId());
-            Log.i("anchor", "anchor resolving status: " + entry.getKey().getAnchor().getCloudAnchorState().toString());
-            if (isReturnableState(entry.getKey().getAnchor().getCloudAnchorState())) {
-                listener.onCloudTaskComplete(entry.getKey());
-                resolveIter.remove();
+        for (int i = inFlightResolveTasks.size() - 1; i >= 0; i--) {
+            ResolveTask task = inFlightResolveTasks.get(i);
+            CloudAnchorState cloudState = task.cloudAnchor.getAnchor().getCloudAnchorState();
+            polls++;
+            if (!isReturnableState(cloudState)) {
+                if (nowMillis > task.attemptDeadlineMillis && task.attempts < MAX_RESOLVE_ATTEMPTS) {
+                    stats.onResolveTimeout();
+                    inFlightResolveTasks.remove(i);
+                    scheduleRetry(task, nowMillis);
+                } else if (nowMillis > task.attemptDeadlineMillis) {
+                    // The last attempt timed out too. Giving up frees its resolve slot.
+                    stats.onResolveTimeout();
+                    stats.onResolveFailure();
+                    inFlightResolveTasks.remove(i);
+                    task.cloudAnchor.getAnchor().detach();
+                    task.state = ResolveState.FAILED;
+                    finishedResolveTasks.add(task);
+                } else if (!task.messageShown && nowMillis > task.messageDeadlineMillis) {
+                    task.messageShown = true;
+                    slowResolveTasks.add(task);
+                }
+                continue;
+            }
+            inFlightResolveTasks.remove(i);
+            if (cloudState.isError() && isRetryableState(cloudState) && task.attempts < MAX_RESOLVE_ATTEMPTS) {
+                Log.w(TAG, "Retrying anchor " + task.cloudAnchor.getAnchorId() + " after " + cloudState);
+                scheduleRetry(task, nowMillis);
+                continue;
             }
-            if (deadlineForMessageMillis > 0 && SystemClock.uptimeMillis() > deadlineForMessageMillis) {
-                listener.onShowResolveMessage();
-                deadlineForMessageMillis = 0;
+            if (cloudState.isError()) {
+                task.state = ResolveState.FAILED;
+                stats.onResolveFailure();
+            } else {
+                task.state = ResolveState.RESOLVED;
+                stats.getResolveLatency().record(nowMillis - task.firstAttemptMillis);
+                if (!resolveFocusFromCaller && task.cloudAnchor.getMappedTranslation() != null) {
+                    resolveFocus = task.cloudAnchor.getMappedTranslation();
+                }
             }
+            finishedResolveTasks.add(task);
+        }
+        startPendingResolves(nowMillis);
+        stats.onPoll(polls);
+
+        // Listeners run after the scan, so they may host, resolve or release anchors. The lists are
+        // read by index because listeners may add to them, or clear them through clearListeners.
+        for (int i = 0; i < finishedHostTasks.size(); i++) {
+            Anchor anchor = finishedHostTasks.get(i).hostedAnchor;
+            finishedHostTasks.get(i).listener.onCloudTaskComplete(anchor);
+            Log.i("anchor", "anchor inserted: " + anchor.getCloudAnchorId());
+        }
+        finishedHostTasks.clear();
+        for (int i = 0; i < slowResolveTasks.size(); i++) {
+            slowResolveTasks.get(i).listeners.get(0).onShowResolveMessage();
         }
+        slowResolveTasks.clear();
+        for (int i = 0; i < finishedResolveTasks.size(); i++) {
+            ResolveTask task = finishedResolveTasks.get(i);
+            while (task.notifiedListeners < task.listeners.size()) {
+                task.listeners.get(task.notifiedListeners++).onCloudTaskComplete(task.cloudAnchor);
+            }
+        }
+        finishedResolveTasks.clear();
     }
 
     /**
      * Used to clear any currently registered listeners, so they wont be called again.
      */
-    synchronized void clearListeners() {
-        pendingHostAnchors.clear();
-        deadlineForMessageMillis = 0;
+    void clearListeners() {
+        queuedHostTasks.clear();
+        inFlightHostTasks.clear();
+        finishedHostTasks.clear();
+        // Resolves that have not finished are cancelled; resolved anchors belong to the caller.
+        for (ResolveTask task : resolveTasks.values()) {
+            if (task.state == ResolveState.IN_FLIGHT) {
+                task.cloudAnchor.getAnchor().detach();
+            }
+        }
+        resolveTasks.clear();
+        inFlightResolveTasks.clear();
+        finishedResolveTasks.clear();
+        slowResolveTasks.clear();
+        pendingResolveTasks.clear();
+        resolveFocus = null;
+        resolveFocusFromCaller = false;
+    }
+
+    /**
+     * Errors that may go away on their own, as opposed to, for example, an unknown cloud anchor ID.
+     */
+    private static boolean isRetryableState(CloudAnchorState cloudState) {
+        switch (cloudState) {
+            case ERROR_INTERNAL:
+            case ERROR_RESOURCE_EXHAUSTED:
+            case ERROR_HOSTING_SERVICE_UNAVAILABLE:
+            case ERROR_RESOLVING_LOCALIZATION_NO_MATCH:
+                return true;
+            default:
+                return false;
+        }
     }
 
     private static boolean isReturnableState(CloudAnchorState cloudState) {
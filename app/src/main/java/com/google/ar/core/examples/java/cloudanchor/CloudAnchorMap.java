@@ -2,18 +2,18 @@ package com.google.ar.core.examples.java.cloudanchor;
 
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.google.ar.core.Anchor;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
 import com.google.ar.sceneform.AnchorNode;
 import com.google.ar.sceneform.NodeParent;
+import com.google.ar.sceneform.math.Vector3;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -21,17 +21,61 @@ import java.util.Map;
 import java.util.Set;
 
 public class CloudAnchorMap {
+    private static final float SPATIAL_CELL_SIZE_METERS = 2.0f;
+    private static final int ROUTE_CACHE_SIZE = 64;
+    private static final int TREE_CACHE_SIZE = 8;
+
+    /**
+     * How {@link #findPath} searches the adjacency.
+     */
+    public enum RoutingMode {
+        /** Uninformed search that expands anchors in order of path weight. */
+        DIJKSTRA,
+        /** Search guided by the straight-line distance between stored anchor translations. */
+        A_STAR,
+    }
+
     private LinkedHashMap<Long, CloudAnchor> map = new LinkedHashMap<Long, CloudAnchor>();
     private LinkedHashMap<String, Long> nameToId = new LinkedHashMap<>();
+    // Every anchor known in the room, whether it is resolved in this session or not.
+    private LinkedHashMap<Long, CloudAnchor> roomAnchors = new LinkedHashMap<>();
     private Set<Long> anchors = new HashSet<>();
+    // Editable adjacency, or null when only the decoded snapshot exists and nothing edited it yet.
     private List<List<Edge>> adjacency = new ArrayList<List<Edge>>();
+    // Routing snapshot of the adjacency, rebuilt lazily after the edges change.
+    private AnchorGraph graph = null;
+    private final AnchorConnectivity connectivity = new AnchorConnectivity();
+    private final PathFinder pathFinder = new PathFinder();
+    // Bumped whenever the graph gains nodes or its edges change, which invalidates cached routes.
+    // Resolving an anchor leaves the graph as it is.
+    private long graphVersion = 0;
+    private final RouteCache routeCache = new RouteCache(ROUTE_CACHE_SIZE, TREE_CACHE_SIZE);
+    private boolean cacheShortestPathTrees = false;
+    private RoutingMode routingMode = RoutingMode.DIJKSTRA;
+    // x, y, z of each anchor's mapped translation indexed by anchor id, NaN when unknown.
+    private float[] positions = new float[0];
+    private float heuristicScale = 0.0f;
+    private boolean heuristicScaleDirty = true;
+    // World positions of the anchors in this session, for closest-anchor lookups.
+    private final AnchorSpatialIndex spatialIndex = new AnchorSpatialIndex(SPATIAL_CELL_SIZE_METERS);
+    private final ArrayList<CloudAnchor> indexedAnchors = new ArrayList<>();
+    private int poseRefreshCursor = 0;
+    // Zone (floor) of each anchor indexed by anchor id; anchors default to zone 0.
+    private int[] zones = new int[0];
+    private boolean hasZones = false;
+    private HierarchicalRouter zoneRouter = null;
+    private long zoneRouterVersion = -1;
+    // Zones whose edges or anchors changed since the zone router was made, or all of them.
+    private final Set<Integer> changedZones = new HashSet<>();
+    private boolean allZonesChanged = true;
 
     public void add(Anchor anchor, Long anchorId, NodeParent nodeParent) {
         CloudAnchor cloudAnchor = new CloudAnchor(anchor, anchorId, nodeParent);
         map.put(cloudAnchor.getAnchorId(), cloudAnchor);
+        roomAnchors.put(cloudAnchor.getAnchorId(), cloudAnchor);
         anchors.add(cloudAnchor.getAnchorId());
-        List<Edge> temp = new ArrayList<Edge>();
-        adjacency.add(temp);
+        addToSpatialIndex(cloudAnchor);
+        ensureAnchorCapacity(anchorId.intValue() + 1);
         Log.i("cloudAnchorMap", "Anchor Id " + anchorId + " inserted");
         Log.i("adjacency", "Anchor Id " + cloudAnchor.getAnchorId() + " inserted");
     }
@@ -39,101 +83,281 @@ public class CloudAnchorMap {
     public void add(CloudAnchor cloudAnchor, boolean resolve) {
         map.put(cloudAnchor.getAnchorId(), cloudAnchor);
         anchors.add(cloudAnchor.getAnchorId());
-        nameToId.put(cloudAnchor.getAnchorName(), cloudAnchor.getAnchorId());
-        List<Edge> temp = new ArrayList<Edge>();
-        if (!resolve) adjacency.add(temp);
+        addToSpatialIndex(cloudAnchor);
+        registerRoomAnchor(cloudAnchor);
+        // Hosts may complete out of order, so the adjacency grows up to the anchor's index instead
+        // of by one row.
+        if (!resolve) ensureAnchorCapacity(cloudAnchor.getAnchorId().intValue() + 1);
         Log.i("cloudAnchorMap", "Anchor Id " + cloudAnchor.getAnchorId() + " inserted");
         Log.i("adjacency", "Anchor Id " + cloudAnchor.getAnchorId() + " inserted");
     }
 
-    public Boolean hasPath(Long sourceAnchorId, Long destAnchorId) {
-        if (findPath(sourceAnchorId, destAnchorId).isEmpty()) {
-            return false;
+    /**
+     * Records an anchor of the room before it is resolved, so that it can be routed to and picked
+     * as a destination while only the anchors along the route are resolved.
+     */
+    public void registerRoomAnchor(CloudAnchor cloudAnchor) {
+        roomAnchors.put(cloudAnchor.getAnchorId(), cloudAnchor);
+        nameToId.put(cloudAnchor.getAnchorName(), cloudAnchor.getAnchorId());
+        if (cloudAnchor.getMappedTranslation() != null) {
+            setMappedTranslation(cloudAnchor.getAnchorId(), cloudAnchor.getMappedTranslation());
         }
-        return true;
+        setZone(cloudAnchor.getAnchorId(), cloudAnchor.getZone());
     }
 
-    public List<Long> findPath(Long sourceAnchorId, Long destAnchorId) {
-        Set<Long> visited = new HashSet<>();
-        visited.add(sourceAnchorId);
-        Set<Long> notVisited = new HashSet<>();
+    /**
+     * Returns the anchor of the room with the given id, resolved or not.
+     */
+    public CloudAnchor getRoomAnchor(Long anchorId) {
+        return roomAnchors.get(anchorId);
+    }
 
-        HashMap<Long, Long> parentTrack = new HashMap<>();
-        parentTrack.put(sourceAnchorId, null);
-        HashMap<Long, Float> shortestPath = new HashMap<>();
+    /**
+     * Removes a resolved anchor from the scene and from the closest-anchor lookups, keeping it in
+     * the room so that it can be resolved again later. The caller detaches the ARCore anchor.
+     */
+    public void releaseAnchor(Long anchorId) {
+        CloudAnchor cloudAnchor = map.remove(anchorId);
+        if (cloudAnchor == null) {
+            return;
+        }
+        if (cloudAnchor.getAnchorNode() != null) {
+            cloudAnchor.getAnchorNode().setRenderable(null);
+            cloudAnchor.getAnchorNode().setParent(null);
+        }
+        spatialIndex.remove(anchorId.intValue());
+        indexedAnchors.remove(cloudAnchor);
+        poseRefreshCursor = 0;
+    }
 
-        List<Long> path = new ArrayList<>();
+    /**
+     * Returns whether {@link #findPath} would find a path, without running a search. Like
+     * {@link #findPath}, an anchor has no path to itself.
+     */
+    public Boolean hasPath(Long sourceAnchorId, Long destAnchorId) {
+        if (sourceAnchorId.equals(destAnchorId)) {
+            return false;
+        }
+        return connectivity.connected(sourceAnchorId.intValue(), destAnchorId.intValue());
+    }
 
-        for (Long anchorId : anchors) {
-            if (anchorId == sourceAnchorId)
-                shortestPath.put(anchorId, 0.0f);
-            else
-                shortestPath.put(anchorId, Float.POSITIVE_INFINITY);
+    /**
+     * Returns the names of the anchors in the room that can be reached from
+     * {@code sourceAnchorId}, including the source itself.
+     */
+    public ArrayList<String> getReachableNames(Long sourceAnchorId) {
+        ArrayList<String> names = new ArrayList<>();
+        for (Map.Entry<Long, CloudAnchor> entry : roomAnchors.entrySet()) {
+            if (entry.getKey().equals(sourceAnchorId)
+                    || connectivity.connected(sourceAnchorId.intValue(), entry.getKey().intValue())) {
+                names.add(entry.getValue().getAnchorName());
+            }
         }
+        return names;
+    }
 
-        List<Edge> min = adjacency.get(sourceAnchorId.intValue());
+    public List<Long> findPath(Long sourceAnchorId, Long destAnchorId) {
+        return getRoutingSnapshot(false).findPath(pathFinder, routeCache, sourceAnchorId, destAnchorId);
+    }
+
+    /**
+     * Captures the current graph for a route search. Pass {@code copyPositions} when the search runs
+     * on another thread, since translations are updated in place.
+     */
+    RoutingSnapshot getRoutingSnapshot(boolean copyPositions) {
+        return new RoutingSnapshot(
+                graphVersion,
+                getGraph(),
+                routingMode,
+                copyPositions ? positions.clone() : positions,
+                routingMode == RoutingMode.A_STAR ? getHeuristicScale() : 0.0f,
+                cacheShortestPathTrees,
+                getZoneRouter());
+    }
 
-        for (Edge edge : min) {
-            shortestPath.put(edge.id, edge.weight);
-            parentTrack.put(edge.id, sourceAnchorId);
+    /**
+     * Returns the router for routes between zones, or null if every anchor is in the same zone.
+     * After the graph or the zones change, the router is updated for the zones that changed only.
+     */
+    private HierarchicalRouter getZoneRouter() {
+        if (!hasZones) {
+            return null;
         }
-        while (true) {
-            Long currentAnchor = closestNeighborUnvist(shortestPath, visited);
+        if (zoneRouter == null || zoneRouterVersion != graphVersion) {
+            zoneRouter = zoneRouter == null || allZonesChanged
+                    ? new HierarchicalRouter(getGraph(), zones)
+                    : zoneRouter.update(getGraph(), zones, changedZones);
+            zoneRouterVersion = graphVersion;
+            changedZones.clear();
+            allZonesChanged = false;
+        }
+        return zoneRouter;
+    }
 
-            if (currentAnchor == null) {
-                // Message saying there is no path from chosen source anchor to dest anchor
-                List<Long> npath = new ArrayList<>();
-                return npath;
+    /**
+     * Puts an anchor in a zone, usually the floor it is on. Edges between anchors of different
+     * zones are portals such as stairs and elevators, and routes between zones are planned over
+     * those portals first.
+     */
+    public void setZone(Long anchorId, int zone) {
+        int index = anchorId.intValue();
+        if (zones.length <= index) {
+            if (zone == 0) {
+                return;
             }
+            zones = Arrays.copyOf(zones, Math.max(index + 1, 2 * zones.length));
+        }
+        if (zones[index] != zone) {
+            changedZones.add(zones[index]);
+            changedZones.add(zone);
+            zones[index] = zone;
+            hasZones = true;
+            graphVersion++;
+        }
+    }
 
-            if (currentAnchor == destAnchorId) {
-                Long traceAnchor = destAnchorId;
+    public int getZone(Long anchorId) {
+        int index = anchorId.intValue();
+        return index < zones.length ? zones[index] : 0;
+    }
 
-                while (true) {
-                    Long parent = parentTrack.get(traceAnchor);
-                    if (parent == null) {
-                        break;
-                    }
+    /**
+     * When enabled, a route miss computes the whole shortest path tree of its source, so later
+     * routes from the same source to any destination are answered without searching.
+     */
+    public void setCacheShortestPathTrees(boolean cacheShortestPathTrees) {
+        this.cacheShortestPathTrees = cacheShortestPathTrees;
+    }
 
-                    path.add(parent);
-                    traceAnchor = parent;
-                }
+    /**
+     * Returns the route cache, for its hit, miss and eviction counters.
+     */
+    RouteCache getRouteCache() {
+        return routeCache;
+    }
 
-                return path;
-            }
-            visited.add(currentAnchor);
+    /**
+     * Returns the immutable routing snapshot of the adjacency. Anchors added since the last edge
+     * change are outside of the snapshot, which is fine since they have no edges yet.
+     */
+    AnchorGraph getGraph() {
+        if (graph == null) {
+            graph = AnchorGraph.fromAdjacency(adjacency);
+        }
+        return graph;
+    }
 
-            for (Edge edge : adjacency.get(currentAnchor.intValue())) {
-                if (visited.contains(edge.id))
-                    continue;
+    public void setRoutingMode(RoutingMode routingMode) {
+        this.routingMode = routingMode;
+    }
 
-                if (shortestPath.get(currentAnchor) + edge.weight < shortestPath.get(edge.id)) {
-                    shortestPath.put(edge.id, shortestPath.get(currentAnchor) + edge.weight);
-                    parentTrack.put(edge.id, currentAnchor);
+    public RoutingMode getRoutingMode() {
+        return routingMode;
+    }
+
+    /**
+     * Records where an anchor was when it was hosted, which A* uses as its heuristic. Anchors that
+     * are not resolved yet may be registered too, since routing runs over the whole adjacency.
+     */
+    public void setMappedTranslation(Long anchorId, Vector3 translation) {
+        int index = anchorId.intValue();
+        if (positions.length < 3 * (index + 1)) {
+            int oldLength = positions.length;
+            positions = Arrays.copyOf(positions, Math.max(3 * (index + 1), 2 * oldLength));
+            Arrays.fill(positions, oldLength, positions.length, Float.NaN);
+        }
+        positions[3 * index] = translation.x;
+        positions[3 * index + 1] = translation.y;
+        positions[3 * index + 2] = translation.z;
+        heuristicScaleDirty = true;
+    }
+
+    /**
+     * Edge weights are not guaranteed to be metric (hosting currently uses unit weights), so the
+     * straight-line distance is scaled by the smallest weight-to-length ratio of any edge. That keeps
+     * the heuristic admissible and consistent. The scale is zero, which disables the heuristic, when
+     * any anchor in the adjacency has no known translation.
+     */
+    private float getHeuristicScale() {
+        if (!heuristicScaleDirty) {
+            return heuristicScale;
+        }
+        heuristicScaleDirty = false;
+        heuristicScale = 0.0f;
+        AnchorGraph snapshot = getGraph();
+        if (positions.length < 3 * snapshot.nodeCount()) {
+            return heuristicScale;
+        }
+        float scale = Float.POSITIVE_INFINITY;
+        for (int from = 0; from < snapshot.nodeCount(); from++) {
+            if (Float.isNaN(positions[3 * from])) {
+                return heuristicScale;
+            }
+            for (int e = snapshot.offsets[from]; e < snapshot.offsets[from + 1]; e++) {
+                int to = snapshot.targets[e];
+                float dx = positions[3 * from] - positions[3 * to];
+                float dy = positions[3 * from + 1] - positions[3 * to + 1];
+                float dz = positions[3 * from + 2] - positions[3 * to + 2];
+                float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                if (length > 0.0f) {
+                    scale = Math.min(scale, snapshot.weights[e] / length);
                 }
             }
-
         }
+        if (scale != Float.POSITIVE_INFINITY) {
+            heuristicScale = scale;
+        }
+        return heuristicScale;
     }
 
-    public Long closestNeighborUnvist(HashMap<Long, Float> shortestPath, Set<Long> visited) {
-        float shortestDist = Float.POSITIVE_INFINITY;
-        Long closestAnchor = null;
-        for (Long anchor : anchors) {
-            if (visited.contains(anchor))
-                continue;
+    /**
+     * Returns the id of the anchor closest to the given world position, or null if no anchor is
+     * indexed yet.
+     */
+    public Long findClosestAnchor(float x, float y, float z) {
+        int closest = spatialIndex.nearest(x, y, z);
+        return closest < 0 ? null : Long.valueOf(closest);
+    }
 
-            float curDistance = shortestPath.get(anchor);
-            if (curDistance == Float.POSITIVE_INFINITY)
-                continue;
+    /**
+     * Writes the ids of up to {@code k} anchors closest to the given world position into
+     * {@code out}, nearest first, and returns how many were written.
+     */
+    public int findClosestAnchors(float x, float y, float z, int k, int[] out) {
+        return spatialIndex.nearest(x, y, z, k, out);
+    }
 
-            if (curDistance < shortestDist) {
-                shortestDist = curDistance;
-                closestAnchor = anchor;
+    /**
+     * Re-reads the poses of up to {@code budget} anchors, continuing where the previous call
+     * stopped, so that anchors re-posed by ARCore are kept up to date at a bounded cost per frame.
+     */
+    public void refreshAnchorPoses(int budget) {
+        int count = Math.min(budget, indexedAnchors.size());
+        for (int i = 0; i < count; i++) {
+            if (poseRefreshCursor >= indexedAnchors.size()) {
+                poseRefreshCursor = 0;
             }
+            updateSpatialIndex(indexedAnchors.get(poseRefreshCursor++));
         }
+    }
 
-        return closestAnchor;
+    private void addToSpatialIndex(CloudAnchor cloudAnchor) {
+        if (cloudAnchor.getAnchor() == null) {
+            return;
+        }
+        if (!spatialIndex.contains(cloudAnchor.getAnchorId().intValue())) {
+            indexedAnchors.add(cloudAnchor);
+        }
+        updateSpatialIndex(cloudAnchor);
+    }
+
+    private void updateSpatialIndex(CloudAnchor cloudAnchor) {
+        Anchor anchor = cloudAnchor.getAnchor();
+        if (anchor.getTrackingState() == TrackingState.STOPPED) {
+            return;
+        }
+        Pose pose = anchor.getPose();
+        spatialIndex.update(cloudAnchor.getAnchorId().intValue(), pose.tx(), pose.ty(), pose.tz());
     }
 
     public int size() {
@@ -151,10 +375,21 @@ public class CloudAnchorMap {
     public void createEdge(Long anchorId1, Long anchorId2, Float weight) {
         Edge temp = new Edge(anchorId2, weight);
         Edge temp2 = new Edge(anchorId1, weight);
-        adjacency.get(anchorId1.intValue()).add(temp);
+        editableAdjacency().get(anchorId1.intValue()).add(temp);
         adjacency.get(anchorId2.intValue()).add(temp2);
+        connectivity.ensureCapacity(Math.max(anchorId1.intValue(), anchorId2.intValue()) + 1);
+        connectivity.union(anchorId1.intValue(), anchorId2.intValue());
+        changedZones.add(getZone(anchorId1));
+        changedZones.add(getZone(anchorId2));
+        graph = null;
+        graphVersion++;
+        heuristicScaleDirty = true;
     }
 
+    /**
+     * Forgets the room: its anchors, names, edges, translations and zones. Cached routes are
+     * invalidated, so nothing of the old room is routed over in the next one.
+     */
     public void clear() {
         for (Map.Entry<Long, CloudAnchor> entry : map.entrySet()) {
             entry.getValue().getAnchorNode().setRenderable(null);
@@ -162,11 +397,29 @@ public class CloudAnchorMap {
             Log.i("clear", String.valueOf(entry.getValue().getAnchorNode().getRenderable() == null));
         }
         map.clear();
+        roomAnchors.clear();
+        nameToId.clear();
+        anchors.clear();
+        spatialIndex.clear();
+        indexedAnchors.clear();
+        poseRefreshCursor = 0;
+
+        adjacency = new ArrayList<List<Edge>>();
+        graph = null;
+        connectivity.rebuild(AnchorGraph.EMPTY);
+        positions = new float[0];
+        heuristicScaleDirty = true;
+        zones = new int[0];
+        hasZones = false;
+        zoneRouter = null;
+        changedZones.clear();
+        allZonesChanged = true;
+        graphVersion++;
     }
 
     public ArrayList<String> getAllNames() {
         ArrayList<String> names = new ArrayList<>();
-        for (Map.Entry<Long, CloudAnchor> entry : map.entrySet()) {
+        for (Map.Entry<Long, CloudAnchor> entry : roomAnchors.entrySet()) {
             names.add(entry.getValue().getAnchorName());
         }
         return names;
@@ -189,28 +442,86 @@ public class CloudAnchorMap {
     }
 
     public List<List<Edge>> getAdjacency() {
+        return editableAdjacency();
+    }
+
+    private List<List<Edge>> editableAdjacency() {
+        if (adjacency == null) {
+            adjacency = graph.toAdjacency();
+        }
         return adjacency;
     }
 
+    /**
+     * Encodes the adjacency in the compact format of {@link AdjacencyCodec}.
+     */
     public String serializeAdjacency() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        Log.i("adjacency", adjacency.toString());
-        oos.writeObject(adjacency);
-        oos.close();
-        return Base64.getEncoder().encodeToString(baos.toByteArray());
+        return AdjacencyCodec.encode(getGraph());
     }
 
-    public void setAdjacency(String s) throws IOException, ClassNotFoundException {
-        byte[] data = Base64.getDecoder().decode(s);
-        ObjectInputStream ois = new ObjectInputStream(
-                new ByteArrayInputStream(data));
-        Object o = ois.readObject();
-        ois.close();
-        adjacency = (List<List<Edge>>) o;
-        Log.i("adjacency", adjacency.toString());
-        for (List<Edge> entry : adjacency) {
-            Log.i("adjacency", String.valueOf(entry.toString()));
+    /**
+     * Rebuilds the adjacency of a room from its compacted snapshot, which covers the anchors up to
+     * {@code snapshotLastIdx}, and the edges that every later anchor published on its own.
+     */
+    public void assembleAdjacency(
+            @Nullable String snapshot, long snapshotLastIdx, List<CloudAnchor> hostedAnchors)
+            throws IOException, ClassNotFoundException {
+        if (snapshot != null) {
+            setAdjacency(snapshot);
+        } else {
+            graph = AnchorGraph.EMPTY;
+            adjacency = null;
+            connectivity.rebuild(graph);
+            allZonesChanged = true;
+            heuristicScaleDirty = true;
+            graphVersion++;
+        }
+        for (CloudAnchor cloudAnchor : hostedAnchors) {
+            ensureAnchorCapacity(cloudAnchor.getAnchorId().intValue() + 1);
+        }
+        for (CloudAnchor cloudAnchor : hostedAnchors) {
+            if (cloudAnchor.getAnchorId() > snapshotLastIdx) {
+                addPublishedEdges(cloudAnchor.getAnchorId(), cloudAnchor.getPublishedEdges());
+            }
+        }
+    }
+
+    /**
+     * Adds the edges an anchor published to the adjacency, growing it for anchors that are not
+     * known yet.
+     */
+    public void addPublishedEdges(Long anchorId, List<Edge> edges) {
+        ensureAnchorCapacity(anchorId.intValue() + 1);
+        for (Edge edge : edges) {
+            ensureAnchorCapacity((int) edge.id + 1);
+            createEdge(anchorId, edge.id, edge.weight);
+        }
+    }
+
+    private void ensureAnchorCapacity(int anchorCount) {
+        int anchorCapacity = adjacency != null ? adjacency.size() : graph.nodeCount();
+        if (anchorCapacity >= anchorCount) {
+            return;
         }
+        List<List<Edge>> editable = editableAdjacency();
+        while (editable.size() < anchorCount) {
+            editable.add(new ArrayList<Edge>());
+        }
+        graph = null;
+        graphVersion++;
+    }
+
+    /**
+     * Replaces the adjacency with a payload from {@link #serializeAdjacency}, or with a legacy
+     * Java-serialized payload.
+     */
+    public void setAdjacency(String s) throws IOException, ClassNotFoundException {
+        graph = AdjacencyCodec.decode(s);
+        adjacency = null;
+        connectivity.rebuild(graph);
+        allZonesChanged = true;
+        heuristicScaleDirty = true;
+        graphVersion++;
+        Log.i("adjacency", graph.nodeCount() + " anchors, " + graph.edgeCount() + " edges");
     }
 }
@@ -0,0 +1,115 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+/**
+ * Host and resolve latencies and outcome counters of a {@link CloudAnchorManager}, for watching
+ * tail latencies in the field. Resolve latency runs from the first attempt to the successful one,
+ * so it includes the retries. Can be read from any thread.
+ */
+final class CloudAnchorStats {
+    private final LatencyHistogram hostLatency = new LatencyHistogram();
+    private final LatencyHistogram resolveLatency = new LatencyHistogram();
+
+    private long resolveAttempts = 0;
+    private long resolveRetries = 0;
+    private long resolveTimeouts = 0;
+    private long resolveFailures = 0;
+    private long hostFailures = 0;
+
+    // Anchor states read by CloudAnchorManager#onUpdate. Only written from the thread running the
+    // updates, so recording them takes no lock.
+    private volatile long pollFrames = 0;
+    private volatile long polls = 0;
+    private volatile int maxPollsPerFrame = 0;
+
+    LatencyHistogram getHostLatency() {
+        return hostLatency;
+    }
+
+    LatencyHistogram getResolveLatency() {
+        return resolveLatency;
+    }
+
+    synchronized long getResolveAttempts() {
+        return resolveAttempts;
+    }
+
+    /**
+     * Number of attempts that were started again after a retryable error or a timeout.
+     */
+    synchronized long getResolveRetries() {
+        return resolveRetries;
+    }
+
+    synchronized long getResolveTimeouts() {
+        return resolveTimeouts;
+    }
+
+    /**
+     * Number of resolves that ended in an error, after all of their retries.
+     */
+    synchronized long getResolveFailures() {
+        return resolveFailures;
+    }
+
+    synchronized long getHostFailures() {
+        return hostFailures;
+    }
+
+    /**
+     * Number of updates that had anchors to poll.
+     */
+    long getPollFrames() {
+        return pollFrames;
+    }
+
+    /**
+     * Number of anchor states read over all updates: one per anchor being hosted or resolved in each
+     * update, and none when nothing is in progress.
+     */
+    long getPolls() {
+        return polls;
+    }
+
+    int getMaxPollsPerFrame() {
+        return maxPollsPerFrame;
+    }
+
+    /**
+     * Records that an update read {@code count} anchor states. Must be called from the thread
+     * running the updates only.
+     */
+    void onPoll(int count) {
+        pollFrames = pollFrames + 1;
+        polls = polls + count;
+        if (count > maxPollsPerFrame) {
+            maxPollsPerFrame = count;
+        }
+    }
+
+    synchronized void onResolveAttempt(boolean retry) {
+        resolveAttempts++;
+        if (retry) {
+            resolveRetries++;
+        }
+    }
+
+    synchronized void onResolveTimeout() {
+        resolveTimeouts++;
+    }
+
+    synchronized void onResolveFailure() {
+        resolveFailures++;
+    }
+
+    synchronized void onHostFailure() {
+        hostFailures++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "host [" + hostLatency + ", failures=" + hostFailures + "], resolve [" + resolveLatency
+                + ", attempts=" + resolveAttempts + ", retries=" + resolveRetries + ", timeouts="
+                + resolveTimeouts + ", failures=" + resolveFailures + "], polls [frames=" + pollFrames
+                + ", reads=" + polls + ", max per frame=" + maxPollsPerFrame + "]";
+    }
+}
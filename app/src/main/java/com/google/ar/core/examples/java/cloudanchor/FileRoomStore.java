@@ -0,0 +1,257 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * {@link InMemoryRoomStore} that also keeps its rooms in files under a directory, so that rooms
+ * survive a restart and a large generated room can be reused across runs. Each room is an
+ * append-only journal of the anchors published to it, read back the first time the room is used.
+ * Every record is written in one piece behind its length and a checksum, and a write that fails is
+ * truncated away. Reading stops at the first record that is cut off or corrupt, and the journal is
+ * truncated there, so that later records are never appended after a bad one.
+ */
+class FileRoomStore extends InMemoryRoomStore {
+    private static final String TAG =
+            CloudAnchorActivity.class.getSimpleName() + "." + FileRoomStore.class.getSimpleName();
+    private static final String ROOM_CODE_FILE = "last_room_code";
+    private static final String ROOM_FILE_PREFIX = "room_";
+    // Version 2 frames every record with its length and a CRC32 of its payload.
+    private static final int JOURNAL_VERSION = 2;
+    private static final int RECORD_HEADER_BYTES = 8;
+    // Adjacency snapshots are the longest strings.
+    private static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+
+    private final File directory;
+
+    FileRoomStore(Executor callbackExecutor, File directory) {
+        super(callbackExecutor);
+        this.directory = directory;
+    }
+
+    @Override
+    long loadLastRoomCode() {
+        long lastRoomCode = 0;
+        File file = new File(directory, ROOM_CODE_FILE);
+        if (file.exists()) {
+            try {
+                lastRoomCode = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath()))).readLong();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read the last room code.", e);
+            }
+        }
+        // Never hand out the code of a room that has a journal, even if the counter was lost.
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(ROOM_FILE_PREFIX)) {
+                    try {
+                        lastRoomCode = Math.max(lastRoomCode, Long.parseLong(name.substring(ROOM_FILE_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a journal.
+                    }
+                }
+            }
+        }
+        return lastRoomCode;
+    }
+
+    @Override
+    void persistRoomCode(long roomCode) throws IOException {
+        ensureDirectory();
+        File tmp = new File(directory, ROOM_CODE_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(roomCode);
+        }
+        if (!tmp.renameTo(new File(directory, ROOM_CODE_FILE))) {
+            throw new IOException("Could not replace " + ROOM_CODE_FILE);
+        }
+    }
+
+    @Override
+    void persistAnchor(long roomCode, StoredAnchor anchor, @Nullable String adjacencySnapshot) throws IOException {
+        ensureDirectory();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeLong(anchor.idx);
+            writeString(out, anchor.cloudAnchorId);
+            writeString(out, anchor.name);
+            out.writeInt(anchor.translation.length);
+            for (float f : anchor.translation) {
+                out.writeFloat(f);
+            }
+            out.writeInt(anchor.zone);
+            out.writeInt(anchor.edges.size());
+            for (Map.Entry<Long, Float> edge : anchor.edges.entrySet()) {
+                out.writeLong(edge.getKey());
+                out.writeFloat(edge.getValue());
+            }
+            writeString(out, adjacencySnapshot);
+        }
+        byte[] payloadBytes = payload.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(payloadBytes);
+
+        try (RandomAccessFile file = new RandomAccessFile(roomFile(roomCode), "rw")) {
+            long start = file.length();
+            ByteArrayOutputStream record = new ByteArrayOutputStream(payloadBytes.length + 12);
+            DataOutputStream out = new DataOutputStream(record);
+            if (start == 0) {
+                out.writeInt(JOURNAL_VERSION);
+            }
+            out.writeInt(payloadBytes.length);
+            out.writeInt((int) checksum.getValue());
+            out.write(payloadBytes);
+            try {
+                file.seek(start);
+                file.write(record.toByteArray());
+            } catch (IOException e) {
+                // Leave no partial record for the next one to be appended after.
+                try {
+                    file.setLength(start);
+                } catch (IOException truncateError) {
+                    e.addSuppressed(truncateError);
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    Room loadRoom(long roomCode) {
+        File file = roomFile(roomCode);
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read room " + roomCode, e);
+            return null;
+        }
+        Room room = new Room();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long validLength = 0;
+        try {
+            if (bytes.length >= 4) {
+                int version = in.readInt();
+                if (version != JOURNAL_VERSION) {
+                    Log.e(TAG, "Could not read room " + roomCode + ", unknown journal version " + version);
+                    return null;
+                }
+                validLength = 4;
+            }
+            while (in.available() > 0) {
+                if (in.available() < RECORD_HEADER_BYTES) {
+                    throw new IOException("Cut off record header");
+                }
+                int length = in.readInt();
+                int expectedChecksum = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    throw new IOException("Record length " + length + " exceeds the journal");
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != expectedChecksum) {
+                    throw new IOException("Record checksum mismatch");
+                }
+                readRecord(room, payload);
+                validLength = bytes.length - in.available();
+            }
+        } catch (IOException e) {
+            // Records are written whole, so anything past the last good one is a write that was cut
+            // off or a corrupt tail. Later records are appended after the good ones again.
+            Log.w(TAG, "Dropping the journal of room " + roomCode + " from byte " + validLength + ": " + e.getMessage());
+            truncate(file, validLength);
+        }
+        return room;
+    }
+
+    private static void readRecord(Room room, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long idx = in.readLong();
+        String cloudAnchorId = readString(in);
+        String name = readString(in);
+        int translationLength = in.readInt();
+        if (translationLength < 0 || translationLength > in.available() / 4) {
+            throw new IOException("Bad translation length " + translationLength);
+        }
+        float[] translation = new float[translationLength];
+        for (int i = 0; i < translation.length; i++) {
+            translation[i] = in.readFloat();
+        }
+        int zone = in.readInt();
+        int edgeCount = in.readInt();
+        if (edgeCount < 0 || edgeCount > in.available() / 12) {
+            throw new IOException("Bad edge count " + edgeCount);
+        }
+        Map<Long, Float> edges = new LinkedHashMap<>();
+        for (int i = 0; i < edgeCount; i++) {
+            edges.put(in.readLong(), in.readFloat());
+        }
+        String adjacencySnapshot = readString(in);
+        applyAnchor(room, new StoredAnchor(idx, cloudAnchorId, name, translation, zone, edges), adjacencySnapshot);
+    }
+
+    private File roomFile(long roomCode) {
+        return new File(directory, ROOM_FILE_PREFIX + roomCode);
+    }
+
+    private void ensureDirectory() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+    }
+
+    private static void truncate(File file, long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not truncate " + file, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING_BYTES || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
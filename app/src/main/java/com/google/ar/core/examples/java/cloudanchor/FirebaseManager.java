@@ -3,9 +3,11 @@ package com.google.ar.core.examples.java.cloudanchor;
 import android.content.Context;
 import android.util.Log;
 
-import com.google.ar.core.Pose;
+import androidx.annotation.Nullable;
+
 import com.google.common.base.Preconditions;
 import com.google.firebase.FirebaseApp;
+import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
@@ -15,30 +17,20 @@ import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * A helper class to manage all communications with Firebase.
+ * A helper class to manage all communications with Firebase. This is the {@link RoomStore} the
+ * app uses.
  */
-class FirebaseManager {
+class FirebaseManager implements RoomStore {
     private static final String TAG =
             CloudAnchorActivity.class.getSimpleName() + "." + FirebaseManager.class.getSimpleName();
 
-    /**
-     * Listener for a new room code.
-     */
-    interface RoomCodeListener {
-
-        /**
-         * Invoked when a new room code is available from Firebase.
-         */
-        void onNewRoomCode(Context currentContext, Long newRoomCode);
-
-        /**
-         * Invoked if a Firebase Database Error happened while fetching the room code.
-         */
-        void onError(DatabaseError error);
-    }
-
     /**
      * Listener for a new cloud anchor ID.
      */
@@ -50,39 +42,35 @@ class FirebaseManager {
         void onNewCloudAnchorId(String cloudAnchorId);
     }
 
-    /**
-     * Listener for last room Idx
-     */
-    interface CloudAnchorIdsListener {
-        /**
-         * Invoked when a new cloud anchor ID is available.
-         */
-        void onCloudAnchorIds(ArrayList<CloudAnchor> resolvingAnchors, String serializedAdjacency);
-    }
-
     // Names of the nodes used in the Firebase Database
     private static final String ROOT_FIREBASE_HOTSPOTS = "hotspot_list";
     private static final String ROOT_LAST_ROOM_CODE = "last_room_code";
     private static final String ROOM_LAST_IDX = "last_idx_code";
     private static final String ROOM_ADJACENCY = "adjacency";
+    private static final String ROOM_ADJACENCY_LAST_IDX = "adjacency_last_idx";
 
     // Some common keys and values used when writing to the Firebase Database.
     private static final String KEY_ANCHOR_NAME = "display_name";
     private static final String KEY_ANCHOR_ID = "hosted_anchor_id";
     private static final String KEY_TIMESTAMP = "updated_at_timestamp";
     private static final String KEY_ANCHOR_TRANSLATION = "anchor_translation";
+    private static final String KEY_ANCHOR_EDGES = "edges";
+    private static final String KEY_ANCHOR_ZONE = "anchor_zone";
     private static final String DISPLAY_NAME_VALUE = "Android EAP Sample";
 
     private final FirebaseApp app;
     private final DatabaseReference hotspotListRef;
     private final DatabaseReference roomCodeRef;
     private final DatabaseReference roomIdxRef;
-    private Context cloudAnchorManagerContext;
 
     private DatabaseReference currentRoomRef = null;
     private ValueEventListener currentRoomListener = null;
+    private ChildEventListener currentRoomChildListener = null;
     private DatabaseReference currentRoomIdxRef = null;
     private ValueEventListener currentRoomIdxListener = null;
+    // Highest anchor index published per room by this device. Anchors can finish hosting out of
+    // order, and the room's last index must not move backwards.
+    private final Map<Long, Long> publishedLastIdx = new HashMap<>();
 
 
     /**
@@ -92,7 +80,6 @@ class FirebaseManager {
      */
     FirebaseManager(Context context) {
         app = FirebaseApp.initializeApp(context);
-        cloudAnchorManagerContext = context;
         if (app != null) {
             String url = "https://indoor-ar-navigation-5eade-default-rtdb.firebaseio.com/";
             DatabaseReference rootRef = FirebaseDatabase.getInstance().getReferenceFromUrl(url);
@@ -113,7 +100,8 @@ class FirebaseManager {
      * Gets a new room code from the Firebase Database. Invokes the listener method when a new room
      * code is available.
      */
-    void getNewRoomCode(RoomCodeListener listener) {
+    @Override
+    public void getNewRoomCode(RoomCodeListener listener) {
         Preconditions.checkNotNull(app, "Firebase App was null");
         roomCodeRef.runTransaction(
                 new Transaction.Handler() {
@@ -132,34 +120,67 @@ class FirebaseManager {
                     @Override
                     public void onComplete(DatabaseError error, boolean committed, DataSnapshot currentData) {
                         if (!committed) {
-                            listener.onError(error);
+                            listener.onError(toRoomStoreError(error, "The room code transaction was not committed"));
                             return;
                         }
                         Long roomCode = currentData.getValue(Long.class);
-                        listener.onNewRoomCode(cloudAnchorManagerContext, roomCode);
+                        listener.onNewRoomCode(roomCode);
                     }
                 });
     }
 
     /**
-     * Stores the given anchor ID in the given room code.
+     * {@inheritDoc}
+     *
+     * <p>Everything is sent as one multi-path update, so readers never see a half-written anchor.
      */
-    void storeAnchorIdInRoom(Long roomCode, Long roomIdx, String cloudAnchorId, String cloudAnchorName, Pose cloudAnchorPose, String serializeAdjacency) {
+    @Override
+    public void storeAnchorIdInRoom(Long roomCode, Long roomIdx, String cloudAnchorId, String cloudAnchorName, float[] cloudAnchorTranslation, int zone, List<Edge> newEdges, @Nullable String adjacencySnapshot, AnchorStoredListener listener) {
         Preconditions.checkNotNull(app, "Firebase App was null");
         DatabaseReference roomRef = hotspotListRef.child(String.valueOf(roomCode));
-        DatabaseReference roomIdxRef = hotspotListRef.child(String.valueOf(roomCode)).child(String.valueOf(roomIdx));
+        String anchorPath = String.valueOf(roomIdx) + "/";
 
         ArrayList<Float> translation = new ArrayList<Float>();
-        for (float f : cloudAnchorPose.getTranslation()) {
+        for (float f : cloudAnchorTranslation) {
             translation.add(f);
         }
 
-        roomRef.child(ROOM_LAST_IDX).setValue(roomIdx);
-        roomRef.child(ROOM_ADJACENCY).setValue(serializeAdjacency);
-        roomIdxRef.child(KEY_ANCHOR_NAME).setValue(cloudAnchorName);
-        roomIdxRef.child(KEY_ANCHOR_ID).setValue(cloudAnchorId);
-        roomIdxRef.child(KEY_TIMESTAMP).setValue(System.currentTimeMillis());
-        roomIdxRef.child(KEY_ANCHOR_TRANSLATION).setValue(translation);
+        Map<String, Float> edges = new HashMap<>();
+        for (Edge edge : newEdges) {
+            edges.put(String.valueOf(edge.id), edge.weight);
+        }
+
+        Map<String, Object> update = new HashMap<>();
+        Long lastIdx = publishedLastIdx.get(roomCode);
+        if (lastIdx == null || roomIdx > lastIdx) {
+            publishedLastIdx.put(roomCode, roomIdx);
+            update.put(ROOM_LAST_IDX, roomIdx);
+        }
+        if (adjacencySnapshot != null) {
+            update.put(ROOM_ADJACENCY, adjacencySnapshot);
+            update.put(ROOM_ADJACENCY_LAST_IDX, roomIdx);
+        }
+        update.put(anchorPath + KEY_ANCHOR_EDGES, edges);
+        update.put(anchorPath + KEY_ANCHOR_NAME, cloudAnchorName);
+        update.put(anchorPath + KEY_ANCHOR_ID, cloudAnchorId);
+        update.put(anchorPath + KEY_TIMESTAMP, System.currentTimeMillis());
+        update.put(anchorPath + KEY_ANCHOR_ZONE, zone);
+        update.put(anchorPath + KEY_ANCHOR_TRANSLATION, translation);
+        roomRef.updateChildren(update, (error, ref) -> {
+            if (error != null) {
+                Log.w(TAG, "Storing anchor " + roomIdx + " failed.", error.toException());
+                listener.onAnchorStored(roomIdx, toRoomStoreError(error, "Storing anchor " + roomIdx + " failed"));
+                return;
+            }
+            listener.onAnchorStored(roomIdx, null);
+        });
+    }
+
+    private static RoomStoreError toRoomStoreError(@Nullable DatabaseError error, String fallbackMessage) {
+        if (error == null) {
+            return new RoomStoreError(fallbackMessage, null);
+        }
+        return new RoomStoreError(error.getMessage(), error.toException());
     }
 
     /**
@@ -191,7 +212,8 @@ class FirebaseManager {
         currentRoomRef.addValueEventListener(currentRoomListener);
     }
 
-    void registerNewListenerForRoom(Long roomCode, CloudAnchorIdsListener listener) {
+    @Override
+    public void registerNewListenerForRoom(Long roomCode, CloudAnchorIdsListener listener) {
         Preconditions.checkNotNull(app, "Firebase App was null");
         clearRoomListener();
         currentRoomRef = hotspotListRef.child(String.valueOf(roomCode));
@@ -199,28 +221,7 @@ class FirebaseManager {
                 new ValueEventListener() {
                     @Override
                     public void onDataChange(DataSnapshot dataSnapshot) {
-                        Object valObj = dataSnapshot.child(ROOM_LAST_IDX).getValue();
-                        Object adjacencyObj = dataSnapshot.child(ROOM_ADJACENCY).getValue();
-                        if (valObj != null) {
-                            Long lastIdx = Long.parseLong(String.valueOf(valObj));
-                            ArrayList<CloudAnchor> resolvingAnchors = new ArrayList<>();
-                            for (long i = 0; i <= lastIdx; i++) {
-                                Object cloudAnchorIdObj = dataSnapshot.child(String.valueOf(i)).child(KEY_ANCHOR_ID).getValue();
-                                Object anchorNameObj = dataSnapshot.child(String.valueOf(i)).child(KEY_ANCHOR_NAME).getValue();
-                                if (cloudAnchorIdObj != null) {
-                                    String cloudAnchorId = String.valueOf(cloudAnchorIdObj);
-                                    String anchorName = String.valueOf(anchorNameObj);
-                                    ArrayList<Float> cloudAnchorTranslation = new ArrayList<>();
-                                    for (DataSnapshot ds : dataSnapshot.child(String.valueOf(i)).child(KEY_ANCHOR_TRANSLATION).getChildren()) {
-                                        Float f = Float.valueOf(String.valueOf(ds.getValue()));
-                                        cloudAnchorTranslation.add(f);
-                                    }
-                                    resolvingAnchors.add(new CloudAnchor(i, anchorName, cloudAnchorId, cloudAnchorTranslation));
-                                }
-                            }
-                            String serializedAdjacency = String.valueOf(adjacencyObj);
-                            listener.onCloudAnchorIds(resolvingAnchors, serializedAdjacency);
-                        }
+                        deliverRoom(dataSnapshot, listener);
                     }
 
                     @Override
@@ -231,11 +232,210 @@ class FirebaseManager {
         currentRoomRef.addValueEventListener(currentRoomListener);
     }
 
-    void clearRoomListener() {
+    /**
+     * Syncs the given room through child events, so that a remote change only costs work for the
+     * anchor that changed instead of a parse of the whole room. The room is read in full once, and
+     * the child events that replay it afterwards are recognized and dropped.
+     */
+    @Override
+    public void registerRoomChangeListener(Long roomCode, RoomChangeListener listener) {
+        Preconditions.checkNotNull(app, "Firebase App was null");
+        clearRoomListener();
+        DatabaseReference roomRef = hotspotListRef.child(String.valueOf(roomCode));
+        currentRoomRef = roomRef;
+        // Edge targets delivered so far, per anchor index.
+        Map<Long, Set<Long>> deliveredEdges = new HashMap<>();
+        currentRoomListener =
+                new ValueEventListener() {
+                    @Override
+                    public void onDataChange(DataSnapshot dataSnapshot) {
+                        if (currentRoomRef != roomRef || currentRoomChildListener != null) {
+                            return;
+                        }
+                        for (CloudAnchor cloudAnchor : deliverRoom(dataSnapshot, listener)) {
+                            deliveredEdges.put(cloudAnchor.getAnchorId(), edgeTargets(cloudAnchor.getPublishedEdges()));
+                        }
+                        currentRoomChildListener = new RoomChildListener(listener, deliveredEdges);
+                        roomRef.addChildEventListener(currentRoomChildListener);
+                    }
+
+                    @Override
+                    public void onCancelled(DatabaseError databaseError) {
+                        Log.w(TAG, "The Firebase operation was cancelled.", databaseError.toException());
+                    }
+                };
+        roomRef.addListenerForSingleValueEvent(currentRoomListener);
+    }
+
+    /**
+     * Turns the child events of a room into anchor and edge deltas. Only numeric children are
+     * anchors; the room counters and the compacted adjacency are ignored, since every edge also
+     * arrives with the anchor that published it.
+     */
+    private static final class RoomChildListener implements ChildEventListener {
+        private final RoomChangeListener listener;
+        private final Map<Long, Set<Long>> deliveredEdges;
+
+        RoomChildListener(RoomChangeListener listener, Map<Long, Set<Long>> deliveredEdges) {
+            this.listener = listener;
+            this.deliveredEdges = deliveredEdges;
+        }
+
+        @Override
+        public void onChildAdded(DataSnapshot anchorSnapshot, @Nullable String previousChildName) {
+            onAnchorSnapshot(anchorSnapshot);
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot anchorSnapshot, @Nullable String previousChildName) {
+            onAnchorSnapshot(anchorSnapshot);
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot anchorSnapshot) {
+            Long idx = anchorIndex(anchorSnapshot.getKey());
+            if (idx != null && deliveredEdges.remove(idx) != null) {
+                listener.onAnchorRemoved(idx);
+            }
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot anchorSnapshot, @Nullable String previousChildName) {
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            Log.w(TAG, "The Firebase operation was cancelled.", databaseError.toException());
+        }
+
+        private void onAnchorSnapshot(DataSnapshot anchorSnapshot) {
+            Long idx = anchorIndex(anchorSnapshot.getKey());
+            if (idx == null) {
+                return;
+            }
+            Set<Long> known = deliveredEdges.get(idx);
+            if (known == null) {
+                // The fields of a new anchor are written one by one; wait for its cloud anchor ID.
+                CloudAnchor cloudAnchor = readCloudAnchor(idx, anchorSnapshot);
+                if (cloudAnchor != null) {
+                    deliveredEdges.put(idx, edgeTargets(cloudAnchor.getPublishedEdges()));
+                    listener.onAnchorAdded(cloudAnchor);
+                }
+                return;
+            }
+            List<Edge> newEdges = new ArrayList<>();
+            for (Edge edge : readEdges(anchorSnapshot.child(KEY_ANCHOR_EDGES))) {
+                if (known.add(edge.id)) {
+                    newEdges.add(edge);
+                }
+            }
+            if (!newEdges.isEmpty()) {
+                listener.onAnchorEdgesAdded(idx, newEdges);
+            }
+        }
+
+        @Nullable
+        private static Long anchorIndex(String key) {
+            try {
+                return Long.parseLong(key);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Parses a whole room and hands it to {@code listener}, returning the anchors it delivered.
+     */
+    private static ArrayList<CloudAnchor> deliverRoom(DataSnapshot dataSnapshot, CloudAnchorIdsListener listener) {
+        Object valObj = dataSnapshot.child(ROOM_LAST_IDX).getValue();
+        Object adjacencyObj = dataSnapshot.child(ROOM_ADJACENCY).getValue();
+        Object adjacencyLastIdxObj = dataSnapshot.child(ROOM_ADJACENCY_LAST_IDX).getValue();
+        ArrayList<CloudAnchor> resolvingAnchors = new ArrayList<>();
+        if (valObj == null) {
+            return resolvingAnchors;
+        }
+        Long lastIdx = Long.parseLong(String.valueOf(valObj));
+        for (long i = 0; i <= lastIdx; i++) {
+            CloudAnchor cloudAnchor = readCloudAnchor(i, dataSnapshot.child(String.valueOf(i)));
+            if (cloudAnchor != null) {
+                resolvingAnchors.add(cloudAnchor);
+            }
+        }
+        String serializedAdjacency = adjacencyObj == null ? null : String.valueOf(adjacencyObj);
+        long adjacencyLastIdx;
+        if (adjacencyLastIdxObj != null) {
+            adjacencyLastIdx = Long.parseLong(String.valueOf(adjacencyLastIdxObj));
+        } else if (serializedAdjacency != null) {
+            // Rooms hosted before edge deltas rewrote the full adjacency for every anchor.
+            adjacencyLastIdx = lastIdx;
+        } else {
+            adjacencyLastIdx = -1;
+        }
+        listener.onCloudAnchorIds(resolvingAnchors, serializedAdjacency, adjacencyLastIdx);
+        return resolvingAnchors;
+    }
+
+    /**
+     * Reads the anchor stored at {@code idx}, or returns null if it has no cloud anchor ID yet.
+     */
+    @Nullable
+    private static CloudAnchor readCloudAnchor(long idx, DataSnapshot anchorSnapshot) {
+        Object cloudAnchorIdObj = anchorSnapshot.child(KEY_ANCHOR_ID).getValue();
+        if (cloudAnchorIdObj == null) {
+            return null;
+        }
+        String cloudAnchorId = String.valueOf(cloudAnchorIdObj);
+        String anchorName = String.valueOf(anchorSnapshot.child(KEY_ANCHOR_NAME).getValue());
+        ArrayList<Float> cloudAnchorTranslation = new ArrayList<>();
+        for (DataSnapshot ds : anchorSnapshot.child(KEY_ANCHOR_TRANSLATION).getChildren()) {
+            Float f = Float.valueOf(String.valueOf(ds.getValue()));
+            cloudAnchorTranslation.add(f);
+        }
+        if (cloudAnchorTranslation.size() < 3) {
+            // The translation is written last.
+            return null;
+        }
+        CloudAnchor cloudAnchor = new CloudAnchor(idx, anchorName, cloudAnchorId, cloudAnchorTranslation);
+        cloudAnchor.setPublishedEdges(readEdges(anchorSnapshot.child(KEY_ANCHOR_EDGES)));
+        Object zoneObj = anchorSnapshot.child(KEY_ANCHOR_ZONE).getValue();
+        if (zoneObj != null) {
+            cloudAnchor.setZone(Integer.parseInt(String.valueOf(zoneObj)));
+        }
+        return cloudAnchor;
+    }
+
+    private static Set<Long> edgeTargets(List<Edge> edges) {
+        Set<Long> targets = new HashSet<>();
+        for (Edge edge : edges) {
+            targets.add(edge.id);
+        }
+        return targets;
+    }
+
+    private static ArrayList<Edge> readEdges(DataSnapshot edgesSnapshot) {
+        ArrayList<Edge> edges = new ArrayList<>();
+        for (DataSnapshot ds : edgesSnapshot.getChildren()) {
+            edges.add(new Edge(Long.parseLong(ds.getKey()), Float.parseFloat(String.valueOf(ds.getValue()))));
+        }
+        return edges;
+    }
+
+    @Override
+    public void clearRoomListener() {
         if (currentRoomListener != null && currentRoomRef != null) {
             currentRoomRef.removeEventListener(currentRoomListener);
             currentRoomListener = null;
-            currentRoomRef = null;
         }
+        if (currentRoomChildListener != null && currentRoomRef != null) {
+            currentRoomRef.removeEventListener(currentRoomChildListener);
+            currentRoomChildListener = null;
+        }
+        currentRoomRef = null;
+    }
+
+    @Override
+    public void close() {
+        clearRoomListener();
     }
 }
@@ -0,0 +1,292 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Two-level router for venues split into zones, typically floors. Anchors that have an edge into
+ * another zone are portals (stairs, elevators, doors). For each zone, the shortest distances
+ * between its portals inside the zone are kept in a table, and together with the portal edges
+ * those tables form a small overlay graph. A query searches the zones of its source and its
+ * destination, then the overlay from the source's portals until the destination is settled, and
+ * only expands the legs of the route inside the zones it actually passes through. Every search
+ * runs on scratch buffers that are reused between queries, so a query only touches what it
+ * reaches and its cost does not grow with the number of zones.
+ *
+ * <p>Routers are immutable snapshots, like {@link AnchorGraph}. {@link #update} makes the router
+ * of a changed graph, sharing the tables of every zone that did not change; missing tables are
+ * computed on first use.
+ *
+ * <p>Like the rest of the routing code this assumes the adjacency is undirected, which is how
+ * {@link CloudAnchorMap#createEdge} builds it. {@link #findPath} may be called from several
+ * threads, each with its own {@link PathFinder}.
+ */
+final class HierarchicalRouter {
+    private static final int NO_PARENT = -1;
+    // Parent of the portals reached straight from the source.
+    private static final int FROM_SOURCE = -2;
+
+    /**
+     * Portals of one zone, in ascending anchor id order, and the distances between them inside the
+     * zone, row by row.
+     */
+    private static final class ZoneTable {
+        final int[] portals;
+        final float[] distances;
+
+        ZoneTable(int[] portals, float[] distances) {
+            this.portals = portals;
+            this.distances = distances;
+        }
+
+        int indexOf(int portal) {
+            return Arrays.binarySearch(portals, portal);
+        }
+    }
+
+    /**
+     * Buffers of the overlay search, reused between queries on one thread. Anchor ids index them
+     * directly, with one more slot for the destination, and entries are only valid when their stamp
+     * equals the current generation, as in {@link PathFinder}.
+     */
+    static final class Scratch {
+        private final IndexedMinHeap frontier = new IndexedMinHeap();
+        private float[] distance = new float[0];
+        private int[] parent = new int[0];
+        private int[] reachedStamp = new int[0];
+        private int generation = 0;
+        // Distances from the portals of the destination's zone to the destination.
+        private float[] toDest = new float[0];
+
+        private void prepare(int size, int destPortalCount) {
+            if (distance.length < size) {
+                int capacity = Math.max(size, distance.length * 2);
+                distance = new float[capacity];
+                parent = new int[capacity];
+                reachedStamp = new int[capacity];
+                generation = 0;
+            }
+            generation++;
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(reachedStamp, 0);
+                generation = 1;
+            }
+            if (toDest.length < destPortalCount) {
+                toDest = new float[Math.max(destPortalCount, toDest.length * 2)];
+            }
+            frontier.reset(distance.length);
+        }
+
+        private void relax(int from, int to, float candidate) {
+            if (reachedStamp[to] != generation || candidate < distance[to]) {
+                reachedStamp[to] = generation;
+                distance[to] = candidate;
+                parent[to] = from;
+                frontier.insertOrDecrease(to, candidate);
+            }
+        }
+    }
+
+    private final AnchorGraph graph;
+    private final int[] zones;
+    // Tables by zone; zones without one get it on the next prepare.
+    private final Map<Integer, ZoneTable> tables;
+    private boolean prepared = false;
+
+    /**
+     * @param zones zone of each anchor id; anchors beyond its end are in zone 0. It is copied.
+     */
+    HierarchicalRouter(AnchorGraph graph, int[] zones) {
+        this(graph, zones, new HashMap<>());
+    }
+
+    private HierarchicalRouter(AnchorGraph graph, int[] zones, Map<Integer, ZoneTable> tables) {
+        this.graph = graph;
+        this.zones = Arrays.copyOf(zones, graph.nodeCount());
+        this.tables = tables;
+    }
+
+    /**
+     * Returns the router of {@code graph} and {@code zones}, which differ from this router's only in
+     * edges within or between {@code changedZones} and in anchors that moved between them. The
+     * tables of the other zones are reused.
+     */
+    HierarchicalRouter update(AnchorGraph graph, int[] zones, Set<Integer> changedZones) {
+        return new HierarchicalRouter(graph, zones, tablesExcept(changedZones));
+    }
+
+    int zoneOf(long anchorId) {
+        return anchorId >= 0 && anchorId < zones.length ? zones[(int) anchorId] : 0;
+    }
+
+    /**
+     * Returns the shortest path from {@code source} to {@code dest} in the shape of
+     * {@link PathFinder#findPath(AnchorGraph, long, long)}.
+     */
+    List<Long> findPath(PathFinder pathFinder, long source, long dest) {
+        int nodeCount = graph.nodeCount();
+        if (source == dest || source < 0 || dest < 0 || source >= nodeCount || dest >= nodeCount) {
+            return new ArrayList<>();
+        }
+        prepare();
+        int src = (int) source;
+        int dst = (int) dest;
+        ZoneTable sourceTable = tables.get(zones[src]);
+        ZoneTable destTable = tables.get(zones[dst]);
+        // The overlay for this query is the portals plus the destination.
+        int destNode = nodeCount;
+
+        Scratch scratch = pathFinder.getOverlayScratch();
+        scratch.prepare(nodeCount + 1, destTable.portals.length);
+        pathFinder.searchWithinZone(graph, source, zones, zones[src]);
+        for (int portal : sourceTable.portals) {
+            float distance = pathFinder.distanceTo(portal);
+            if (distance != Float.POSITIVE_INFINITY) {
+                scratch.relax(FROM_SOURCE, portal, distance);
+            }
+        }
+        float direct = pathFinder.distanceTo(dst);
+        if (direct != Float.POSITIVE_INFINITY) {
+            scratch.relax(FROM_SOURCE, destNode, direct);
+        }
+        pathFinder.searchWithinZone(graph, dest, zones, zones[dst]);
+        for (int p = 0; p < destTable.portals.length; p++) {
+            scratch.toDest[p] = pathFinder.distanceTo(destTable.portals[p]);
+        }
+
+        boolean reached = false;
+        while (!scratch.frontier.isEmpty()) {
+            int current = scratch.frontier.poll();
+            if (current == destNode) {
+                reached = true;
+                break;
+            }
+            float distance = scratch.distance[current];
+            // Other portals of the zone, through the zone.
+            ZoneTable table = tables.get(zones[current]);
+            int count = table.portals.length;
+            int row = table.indexOf(current) * count;
+            for (int q = 0; q < count; q++) {
+                float weight = table.distances[row + q];
+                if (weight != Float.POSITIVE_INFINITY && table.portals[q] != current) {
+                    scratch.relax(current, table.portals[q], distance + weight);
+                }
+            }
+            // Portal edges into other zones.
+            for (int e = graph.offsets[current]; e < graph.offsets[current + 1]; e++) {
+                int target = graph.targets[e];
+                if (zones[target] != zones[current]) {
+                    scratch.relax(current, target, distance + graph.weights[e]);
+                }
+            }
+            if (table == destTable) {
+                float toDest = scratch.toDest[destTable.indexOf(current)];
+                if (toDest != Float.POSITIVE_INFINITY) {
+                    scratch.relax(current, destNode, distance + toDest);
+                }
+            }
+        }
+        if (!reached) {
+            return new ArrayList<>();
+        }
+
+        // Overlay nodes of the route, from the destination back to the source.
+        List<Integer> waypoints = new ArrayList<>();
+        waypoints.add(dst);
+        for (int node = scratch.parent[destNode]; node != FROM_SOURCE; node = scratch.parent[node]) {
+            waypoints.add(node);
+        }
+        waypoints.add(src);
+        Collections.reverse(waypoints);
+        return expand(pathFinder, waypoints);
+    }
+
+    /**
+     * Turns the overlay route into anchors by searching each leg inside its zone. Legs between
+     * zones are single portal edges.
+     */
+    private List<Long> expand(PathFinder pathFinder, List<Integer> waypoints) {
+        List<Long> forward = new ArrayList<>();
+        forward.add((long) waypoints.get(0));
+        for (int i = 1; i < waypoints.size(); i++) {
+            int from = waypoints.get(i - 1);
+            int to = waypoints.get(i);
+            if (from == to) {
+                // The source or the destination is a portal itself.
+                continue;
+            }
+            if (zones[from] == zones[to]) {
+                List<Long> leg = pathFinder.findPathWithinZone(graph, from, to, zones, zones[from]);
+                // The leg runs from the parent of `to` back to `from`, which is already added.
+                for (int j = leg.size() - 2; j >= 0; j--) {
+                    forward.add(leg.get(j));
+                }
+            }
+            forward.add((long) to);
+        }
+        List<Long> path = new ArrayList<>(forward.size() - 1);
+        for (int i = forward.size() - 2; i >= 0; i--) {
+            path.add(forward.get(i));
+        }
+        return path;
+    }
+
+    private synchronized Map<Integer, ZoneTable> tablesExcept(Set<Integer> changedZones) {
+        Map<Integer, ZoneTable> kept = new HashMap<>(tables);
+        kept.keySet().removeAll(changedZones);
+        return kept;
+    }
+
+    /**
+     * Computes the table of every zone that has none yet: its portals, and the distance between
+     * every two of them inside the zone.
+     */
+    private synchronized void prepare() {
+        if (prepared) {
+            return;
+        }
+        int nodeCount = graph.nodeCount();
+        Map<Integer, List<Integer>> missing = new HashMap<>();
+        for (int node = 0; node < nodeCount; node++) {
+            int zone = zones[node];
+            if (tables.containsKey(zone)) {
+                continue;
+            }
+            List<Integer> portals = missing.get(zone);
+            if (portals == null) {
+                portals = new ArrayList<>();
+                missing.put(zone, portals);
+            }
+            for (int e = graph.offsets[node]; e < graph.offsets[node + 1]; e++) {
+                if (zones[graph.targets[e]] != zone) {
+                    portals.add(node);
+                    break;
+                }
+            }
+        }
+
+        PathFinder pathFinder = new PathFinder();
+        for (Map.Entry<Integer, List<Integer>> entry : missing.entrySet()) {
+            int zone = entry.getKey();
+            int count = entry.getValue().size();
+            int[] portals = new int[count];
+            for (int p = 0; p < count; p++) {
+                portals[p] = entry.getValue().get(p);
+            }
+            float[] distances = new float[count * count];
+            for (int p = 0; p < count; p++) {
+                pathFinder.searchWithinZone(graph, portals[p], zones, zone);
+                for (int q = 0; q < count; q++) {
+                    distances[p * count + q] = pathFinder.distanceTo(portals[q]);
+                }
+            }
+            tables.put(zone, new ZoneTable(portals, distances));
+        }
+        prepared = true;
+    }
+}
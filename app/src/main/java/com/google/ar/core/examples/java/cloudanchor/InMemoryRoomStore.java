@@ -0,0 +1,264 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * {@link RoomStore} that keeps its rooms in memory, so that room sync and routing can be run and
+ * benchmarked without a live database. Listeners are invoked on {@code callbackExecutor}, in the
+ * order the changes were made; a direct executor makes every call synchronous.
+ *
+ * <p>All methods are synchronized, so rooms can be filled from a load generator thread.
+ */
+class InMemoryRoomStore implements RoomStore {
+
+    /**
+     * An anchor as it was published.
+     */
+    static final class StoredAnchor {
+        final long idx;
+        final String cloudAnchorId;
+        final String name;
+        final float[] translation;
+        final int zone;
+        // Edge target to weight.
+        final Map<Long, Float> edges;
+
+        StoredAnchor(long idx, String cloudAnchorId, String name, float[] translation, int zone, Map<Long, Float> edges) {
+            this.idx = idx;
+            this.cloudAnchorId = cloudAnchorId;
+            this.name = name;
+            this.translation = translation;
+            this.zone = zone;
+            this.edges = edges;
+        }
+
+        CloudAnchor toCloudAnchor() {
+            ArrayList<Float> mappedTranslation = new ArrayList<>();
+            for (float f : translation) {
+                mappedTranslation.add(f);
+            }
+            CloudAnchor cloudAnchor = new CloudAnchor(idx, name, cloudAnchorId, mappedTranslation);
+            ArrayList<Edge> publishedEdges = new ArrayList<>();
+            for (Map.Entry<Long, Float> edge : edges.entrySet()) {
+                publishedEdges.add(new Edge(edge.getKey(), edge.getValue()));
+            }
+            cloudAnchor.setPublishedEdges(publishedEdges);
+            cloudAnchor.setZone(zone);
+            return cloudAnchor;
+        }
+    }
+
+    /**
+     * The anchors of a room by index, and its compacted adjacency.
+     */
+    static final class Room {
+        final TreeMap<Long, StoredAnchor> anchors = new TreeMap<>();
+        @Nullable
+        String adjacency = null;
+        long adjacencyLastIdx = -1;
+    }
+
+    private final Executor callbackExecutor;
+    private final Map<Long, Room> rooms = new HashMap<>();
+    // Read through loadLastRoomCode on first use.
+    private long lastRoomCode = -1;
+
+    // A new token per registration, so that callbacks queued for a replaced listener are dropped.
+    @Nullable
+    private Object currentRegistration = null;
+    @Nullable
+    private Long currentRoomCode = null;
+    @Nullable
+    private CloudAnchorIdsListener currentListener = null;
+    private boolean currentIncremental = false;
+
+    InMemoryRoomStore(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public synchronized void getNewRoomCode(RoomCodeListener listener) {
+        if (lastRoomCode < 0) {
+            lastRoomCode = loadLastRoomCode();
+        }
+        long roomCode = lastRoomCode + 1;
+        try {
+            persistRoomCode(roomCode);
+        } catch (IOException e) {
+            RoomStoreError error = RoomStoreError.fromException(e);
+            callbackExecutor.execute(() -> listener.onError(error));
+            return;
+        }
+        lastRoomCode = roomCode;
+        callbackExecutor.execute(() -> listener.onNewRoomCode(roomCode));
+    }
+
+    @Override
+    public synchronized void storeAnchorIdInRoom(Long roomCode, Long roomIdx, String cloudAnchorId, String cloudAnchorName, float[] translation, int zone, List<Edge> newEdges, @Nullable String adjacencySnapshot, AnchorStoredListener listener) {
+        Map<Long, Float> edges = new LinkedHashMap<>();
+        for (Edge edge : newEdges) {
+            edges.put(edge.id, edge.weight);
+        }
+        StoredAnchor anchor = new StoredAnchor(
+                roomIdx, cloudAnchorId, cloudAnchorName, translation.clone(), zone, edges);
+        Room room = getRoom(roomCode);
+        if (room == null) {
+            room = new Room();
+            rooms.put(roomCode, room);
+        }
+        try {
+            persistAnchor(roomCode, anchor, adjacencySnapshot);
+        } catch (IOException e) {
+            RoomStoreError error = RoomStoreError.fromException(e);
+            callbackExecutor.execute(() -> listener.onAnchorStored(roomIdx, error));
+            return;
+        }
+        StoredAnchor previous = applyAnchor(room, anchor, adjacencySnapshot);
+        if (currentListener != null && roomCode.equals(currentRoomCode)) {
+            if (currentIncremental) {
+                deliverChange((RoomChangeListener) currentListener, previous, anchor);
+            } else {
+                deliverRoom(currentListener, room);
+            }
+        }
+        callbackExecutor.execute(() -> listener.onAnchorStored(roomIdx, null));
+    }
+
+    @Override
+    public synchronized void registerNewListenerForRoom(Long roomCode, CloudAnchorIdsListener listener) {
+        register(roomCode, listener, false);
+    }
+
+    @Override
+    public synchronized void registerRoomChangeListener(Long roomCode, RoomChangeListener listener) {
+        register(roomCode, listener, true);
+    }
+
+    @Override
+    public synchronized void clearRoomListener() {
+        currentRegistration = null;
+        currentRoomCode = null;
+        currentListener = null;
+    }
+
+    @Override
+    public void close() {
+        clearRoomListener();
+    }
+
+    /**
+     * Returns the last room code handed out before this store was created.
+     */
+    long loadLastRoomCode() {
+        return 0;
+    }
+
+    /**
+     * Records that {@code roomCode} was handed out. Called before the listener is told.
+     */
+    void persistRoomCode(long roomCode) throws IOException {
+    }
+
+    /**
+     * Returns a room this store does not hold in memory yet, or null if it does not exist.
+     */
+    @Nullable
+    Room loadRoom(long roomCode) {
+        return null;
+    }
+
+    /**
+     * Records a published anchor. Called before the anchor becomes visible; if this throws, the
+     * anchor is not stored.
+     */
+    void persistAnchor(long roomCode, StoredAnchor anchor, @Nullable String adjacencySnapshot) throws IOException {
+    }
+
+    /**
+     * Adds {@code anchor} to {@code room}, returning the anchor it replaced.
+     */
+    @Nullable
+    static StoredAnchor applyAnchor(Room room, StoredAnchor anchor, @Nullable String adjacencySnapshot) {
+        StoredAnchor previous = room.anchors.put(anchor.idx, anchor);
+        if (adjacencySnapshot != null) {
+            room.adjacency = adjacencySnapshot;
+            room.adjacencyLastIdx = anchor.idx;
+        }
+        return previous;
+    }
+
+    @Nullable
+    private Room getRoom(long roomCode) {
+        Room room = rooms.get(roomCode);
+        if (room == null) {
+            room = loadRoom(roomCode);
+            if (room != null) {
+                rooms.put(roomCode, room);
+            }
+        }
+        return room;
+    }
+
+    private void register(Long roomCode, CloudAnchorIdsListener listener, boolean incremental) {
+        currentRegistration = new Object();
+        currentRoomCode = roomCode;
+        currentListener = listener;
+        currentIncremental = incremental;
+        Room room = getRoom(roomCode);
+        // Like Firebase, a room nobody has published to yet is not delivered.
+        if (room != null) {
+            deliverRoom(listener, room);
+        }
+    }
+
+    private void deliverRoom(CloudAnchorIdsListener listener, Room room) {
+        ArrayList<CloudAnchor> resolvingAnchors = new ArrayList<>(room.anchors.size());
+        for (StoredAnchor anchor : room.anchors.values()) {
+            resolvingAnchors.add(anchor.toCloudAnchor());
+        }
+        String adjacency = room.adjacency;
+        long adjacencyLastIdx = room.adjacencyLastIdx;
+        post(() -> listener.onCloudAnchorIds(resolvingAnchors, adjacency, adjacencyLastIdx));
+    }
+
+    private void deliverChange(RoomChangeListener listener, @Nullable StoredAnchor previous, StoredAnchor anchor) {
+        if (previous == null) {
+            CloudAnchor cloudAnchor = anchor.toCloudAnchor();
+            post(() -> listener.onAnchorAdded(cloudAnchor));
+            return;
+        }
+        List<Edge> newEdges = new ArrayList<>();
+        for (Map.Entry<Long, Float> edge : anchor.edges.entrySet()) {
+            if (!previous.edges.containsKey(edge.getKey())) {
+                newEdges.add(new Edge(edge.getKey(), edge.getValue()));
+            }
+        }
+        if (!newEdges.isEmpty()) {
+            post(() -> listener.onAnchorEdgesAdded(anchor.idx, newEdges));
+        }
+    }
+
+    /**
+     * Runs {@code callback} on the callback executor, unless the listener was replaced meanwhile.
+     */
+    private void post(Runnable callback) {
+        Object registration = currentRegistration;
+        callbackExecutor.execute(() -> {
+            synchronized (this) {
+                if (currentRegistration != registration) {
+                    return;
+                }
+            }
+            callback.run();
+        });
+    }
+}
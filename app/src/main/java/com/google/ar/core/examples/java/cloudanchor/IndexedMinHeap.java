@@ -0,0 +1,116 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of dense int indices keyed by float priorities, with decrease-key support.
+ * All storage is kept in primitive arrays that are reused between searches.
+ */
+final class IndexedMinHeap {
+    private static final int NOT_IN_HEAP = -1;
+
+    private int[] heap = new int[0];
+    private int[] position = new int[0];
+    private float[] keys = new float[0];
+    private int size;
+
+    /**
+     * Empties the heap and makes room for indices in {@code [0, capacity)}.
+     */
+    void reset(int capacity) {
+        if (position.length < capacity) {
+            int newCapacity = Math.max(capacity, position.length * 2);
+            heap = new int[newCapacity];
+            position = new int[newCapacity];
+            keys = new float[newCapacity];
+            Arrays.fill(position, NOT_IN_HEAP);
+        } else {
+            for (int i = 0; i < size; i++) {
+                position[heap[i]] = NOT_IN_HEAP;
+            }
+        }
+        size = 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int index) {
+        return position[index] != NOT_IN_HEAP;
+    }
+
+    /**
+     * Inserts {@code index} with the given key, or lowers its key if it is already queued with a
+     * larger one.
+     */
+    void insertOrDecrease(int index, float key) {
+        int at = position[index];
+        if (at == NOT_IN_HEAP) {
+            at = size++;
+            heap[at] = index;
+            position[index] = at;
+            keys[index] = key;
+            siftUp(at);
+        } else if (key < keys[index]) {
+            keys[index] = key;
+            siftUp(at);
+        }
+    }
+
+    /**
+     * Removes and returns the index with the smallest key.
+     */
+    int poll() {
+        int top = heap[0];
+        position[top] = NOT_IN_HEAP;
+        size--;
+        if (size > 0) {
+            int last = heap[size];
+            heap[0] = last;
+            position[last] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int at) {
+        int index = heap[at];
+        float key = keys[index];
+        while (at > 0) {
+            int parentAt = (at - 1) >>> 1;
+            int parent = heap[parentAt];
+            if (keys[parent] <= key) {
+                break;
+            }
+            heap[at] = parent;
+            position[parent] = at;
+            at = parentAt;
+        }
+        heap[at] = index;
+        position[index] = at;
+    }
+
+    private void siftDown(int at) {
+        int index = heap[at];
+        float key = keys[index];
+        int half = size >>> 1;
+        while (at < half) {
+            int childAt = 2 * at + 1;
+            int child = heap[childAt];
+            int rightAt = childAt + 1;
+            if (rightAt < size && keys[heap[rightAt]] < keys[child]) {
+                childAt = rightAt;
+                child = heap[childAt];
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            heap[at] = child;
+            position[child] = at;
+            at = childAt;
+        }
+        heap[at] = index;
+        position[index] = at;
+    }
+}
@@ -0,0 +1,101 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Histogram of durations in milliseconds with log-linear buckets: every power of two is split into
+ * {@code 2^SUB_BUCKET_BITS} buckets, so a reported percentile is within about 12% of the true
+ * value while the histogram stays a fixed, small array. Durations of more than an hour land in the
+ * last bucket.
+ *
+ * <p>All methods are synchronized so that the histogram can be read from any thread.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^22 ms is a little over an hour.
+    private static final int MAX_EXPONENT = 22;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    synchronized void record(long millis) {
+        long value = Math.max(0, millis);
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getMax() {
+        return max;
+    }
+
+    synchronized double getMean() {
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, between 0 and 100, or 0 if nothing was
+     * recorded.
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts[bucket];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(max, upperBoundOf(bucket));
+            }
+        }
+        return max;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "n=%d mean=%.0fms p50=%dms p90=%dms p99=%dms max=%dms",
+                count, getMean(), getPercentile(50), getPercentile(90), getPercentile(99), max);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        if (exponent == MAX_EXPONENT && value >= (2L << MAX_EXPONENT)) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
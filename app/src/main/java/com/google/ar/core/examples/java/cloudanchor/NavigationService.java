@@ -0,0 +1,107 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs route searches for a {@link CloudAnchorMap} on a background thread. Only the latest request
+ * matters: starting a new search cancels the one still in flight, and its future never completes
+ * normally.
+ *
+ * <p>Must be called from the thread that owns the map, which is the main thread in the app. The
+ * returned futures complete on the routing thread, so callers hand the result back to the main
+ * thread themselves.
+ */
+class NavigationService {
+    private static final String TAG =
+            CloudAnchorActivity.class.getSimpleName() + "." + NavigationService.class.getSimpleName();
+    // At most one running and a couple of superseded searches waiting to notice their cancellation.
+    private static final int MAX_QUEUED_SEARCHES = 2;
+
+    private final CloudAnchorMap cloudAnchorMap;
+    // Only used from the routing thread.
+    private final PathFinder pathFinder = new PathFinder();
+    private final ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(
+                    1,
+                    1,
+                    0L,
+                    TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUEUED_SEARCHES),
+                    runnable -> new Thread(runnable, "RouteSearch"),
+                    // Anything still queued when the queue is full has been superseded already.
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+
+    // Written on the routing thread, read for logging.
+    private volatile int lastExpandedCount = 0;
+
+    private CompletableFuture<List<Long>> inFlightResult = null;
+    private Future<?> inFlightSearch = null;
+
+    NavigationService(CloudAnchorMap cloudAnchorMap) {
+        this.cloudAnchorMap = cloudAnchorMap;
+    }
+
+    /**
+     * Finds the path from {@code sourceAnchorId} to {@code destAnchorId} in the same shape as
+     * {@link CloudAnchorMap#findPath}, cancelling any search started before.
+     */
+    CompletableFuture<List<Long>> findPathAsync(Long sourceAnchorId, Long destAnchorId) {
+        cancel();
+        RouteCache routeCache = cloudAnchorMap.getRouteCache();
+        RoutingSnapshot snapshot = cloudAnchorMap.getRoutingSnapshot(true);
+        CompletableFuture<List<Long>> result = new CompletableFuture<>();
+        inFlightResult = result;
+        inFlightSearch = executor.submit(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                List<Long> path = snapshot.findPath(pathFinder, routeCache, sourceAnchorId, destAnchorId);
+                lastExpandedCount = pathFinder.getLastExpandedCount();
+                result.complete(path);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                // Clear a cancellation that arrived after the search finished, so it does not
+                // leak into the next search on this thread.
+                Thread.interrupted();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Cancels the search in flight, if any.
+     */
+    void cancel() {
+        if (inFlightResult != null) {
+            if (inFlightResult.cancel(false)) {
+                Log.d(TAG, "Cancelled a superseded route search");
+            }
+            inFlightSearch.cancel(true);
+            inFlightResult = null;
+            inFlightSearch = null;
+        }
+    }
+
+    /**
+     * Returns how many anchors the last search expanded, which shows how much of the graph A* and
+     * the zone router skip. A route served from the {@link RouteCache} runs no search, so it leaves
+     * the count of the search before it.
+     */
+    int getLastExpandedCount() {
+        return lastExpandedCount;
+    }
+
+    void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+}
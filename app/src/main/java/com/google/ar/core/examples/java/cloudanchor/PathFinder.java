@@ -0,0 +1,240 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Dijkstra and A* shortest path search over an {@link AnchorGraph} snapshot, where anchor ids are
+ * used directly as dense indices. The distance, parent and bookkeeping arrays are reused between
+ * searches, so a search only touches the nodes it reaches instead of re-initializing state for the
+ * whole map. Searches can optionally be confined to the anchors of one zone.
+ *
+ * <p>Instances are not thread safe.
+ */
+final class PathFinder {
+    private static final int NO_PARENT = -1;
+    private static final int NO_DEST = -1;
+    // Interruption is checked once every this many + 1 expanded anchors.
+    private static final int CANCELLATION_CHECK_MASK = 0x3FF;
+
+    private final IndexedMinHeap frontier = new IndexedMinHeap();
+    private float[] distance = new float[0];
+    private int[] parent = new int[0];
+    // A node's distance and parent are only valid when its stamp equals the current generation,
+    // which avoids clearing the arrays before every search.
+    private int[] reachedStamp = new int[0];
+    private int[] settledStamp = new int[0];
+    private int generation = 0;
+    private int lastExpandedCount = 0;
+    // Created when this finder first runs a HierarchicalRouter query.
+    private HierarchicalRouter.Scratch overlayScratch = null;
+
+    /**
+     * Returns the shortest path from {@code source} to {@code dest}, in the same shape the map has
+     * always returned it: the anchors preceding {@code dest}, from its parent back to
+     * {@code source}. The list is empty if there is no path or if both ids are the same.
+     */
+    List<Long> findPath(AnchorGraph graph, long source, long dest) {
+        return findPath(graph, source, dest, null, 0.0f);
+    }
+
+    /**
+     * Same as {@link #findPath(AnchorGraph, long, long)}, but runs A* when {@code positions} is
+     * non-null. {@code positions} holds x, y, z for each anchor id and the heuristic is the
+     * straight-line distance to {@code dest} multiplied by {@code heuristicScale}. The caller must
+     * pick a scale that never overestimates the remaining path weight; a scale of zero degrades to
+     * Dijkstra.
+     */
+    List<Long> findPath(
+            AnchorGraph graph, long source, long dest, float[] positions, float heuristicScale) {
+        if (source == dest || !search(graph, source, dest, positions, heuristicScale, null, 0)) {
+            return new ArrayList<>();
+        }
+        return tracePath((int) dest);
+    }
+
+    /**
+     * Same as {@link #findPath(AnchorGraph, long, long)}, but only walks through anchors whose entry
+     * in {@code zones} is {@code zone}.
+     */
+    List<Long> findPathWithinZone(AnchorGraph graph, long source, long dest, int[] zones, int zone) {
+        if (source == dest || !search(graph, source, dest, null, 0.0f, zones, zone)) {
+            return new ArrayList<>();
+        }
+        return tracePath((int) dest);
+    }
+
+    /**
+     * Runs Dijkstra from {@code source} through the anchors of {@code zone} only. Afterwards
+     * {@link #distanceTo} returns the distances it found.
+     */
+    void searchWithinZone(AnchorGraph graph, long source, int[] zones, int zone) {
+        search(graph, source, NO_DEST, null, 0.0f, zones, zone);
+    }
+
+    /**
+     * Returns the distance from the source of the last search to {@code node}, or positive infinity
+     * if that search did not settle it.
+     */
+    float distanceTo(int node) {
+        if (node < 0 || node >= settledStamp.length || settledStamp[node] != generation) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return distance[node];
+    }
+
+    /**
+     * Runs Dijkstra from {@code source} over the whole graph and returns a new array holding each
+     * anchor's parent in the shortest path tree, or -1 for the source and unreachable anchors.
+     */
+    int[] shortestPathTree(AnchorGraph graph, long source) {
+        int nodeCount = graph.nodeCount();
+        int[] tree = new int[nodeCount];
+        Arrays.fill(tree, NO_PARENT);
+        search(graph, source, NO_DEST, null, 0.0f, null, 0);
+        for (int node = 0; node < nodeCount && lastExpandedCount > 0; node++) {
+            if (settledStamp[node] == generation) {
+                tree[node] = parent[node];
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Extracts the path to {@code dest} from a tree built by {@link #shortestPathTree}, in the same
+     * shape as {@link #findPath(AnchorGraph, long, long)}.
+     */
+    static List<Long> pathFromTree(int[] tree, long source, long dest) {
+        List<Long> path = new ArrayList<>();
+        if (source == dest || dest < 0 || dest >= tree.length || tree[(int) dest] == NO_PARENT) {
+            return path;
+        }
+        for (int trace = tree[(int) dest]; trace != NO_PARENT; trace = tree[trace]) {
+            path.add((long) trace);
+        }
+        return path;
+    }
+
+    /**
+     * Searches from {@code source} until {@code dest} is settled, or until the reachable anchors are
+     * exhausted when {@code dest} is {@link #NO_DEST}. Returns whether {@code dest} was reached.
+     * When {@code zones} is non-null, only anchors in {@code zone} are expanded.
+     */
+    private boolean search(
+            AnchorGraph graph,
+            long source,
+            long dest,
+            float[] positions,
+            float heuristicScale,
+            int[] zones,
+            int zone) {
+        lastExpandedCount = 0;
+        int nodeCount = graph.nodeCount();
+        if (source < 0 || source >= nodeCount || dest >= nodeCount || (dest < 0 && dest != NO_DEST)) {
+            return false;
+        }
+        int sourceIndex = (int) source;
+        int destIndex = (int) dest;
+        boolean informed = positions != null && heuristicScale > 0.0f && destIndex != NO_DEST;
+        prepare(nodeCount);
+
+        reach(sourceIndex, 0.0f, NO_PARENT);
+        frontier.insertOrDecrease(sourceIndex, 0.0f);
+        while (!frontier.isEmpty()) {
+            int current = frontier.poll();
+            settledStamp[current] = generation;
+            if (current == destIndex) {
+                return true;
+            }
+            lastExpandedCount++;
+            checkCancelled();
+
+            float currentDistance = distance[current];
+            int[] targets = graph.targets;
+            float[] weights = graph.weights;
+            for (int e = graph.offsets[current], end = graph.offsets[current + 1]; e < end; e++) {
+                int next = targets[e];
+                if (settledStamp[next] == generation || (zones != null && zones[next] != zone)) {
+                    continue;
+                }
+                float candidate = currentDistance + weights[e];
+                if (reachedStamp[next] != generation || candidate < distance[next]) {
+                    reach(next, candidate, current);
+                    float priority = informed
+                            ? candidate + heuristicScale * straightLineDistance(positions, next, destIndex)
+                            : candidate;
+                    frontier.insertOrDecrease(next, priority);
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<Long> tracePath(int dest) {
+        List<Long> path = new ArrayList<>();
+        for (int trace = parent[dest]; trace != NO_PARENT; trace = parent[trace]) {
+            path.add((long) trace);
+        }
+        return path;
+    }
+
+    /**
+     * Returns the buffers that {@link HierarchicalRouter} queries run with this finder reuse for
+     * their overlay search.
+     */
+    HierarchicalRouter.Scratch getOverlayScratch() {
+        if (overlayScratch == null) {
+            overlayScratch = new HierarchicalRouter.Scratch();
+        }
+        return overlayScratch;
+    }
+
+    /**
+     * Number of anchors expanded by the last search.
+     */
+    int getLastExpandedCount() {
+        return lastExpandedCount;
+    }
+
+    private static float straightLineDistance(float[] positions, int a, int b) {
+        float dx = positions[3 * a] - positions[3 * b];
+        float dy = positions[3 * a + 1] - positions[3 * b + 1];
+        float dz = positions[3 * a + 2] - positions[3 * b + 2];
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Lets searches running on a background thread stop early once their thread is interrupted.
+     */
+    private void checkCancelled() {
+        if ((lastExpandedCount & CANCELLATION_CHECK_MASK) == 0 && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Route search interrupted");
+        }
+    }
+
+    private void reach(int index, float newDistance, int newParent) {
+        reachedStamp[index] = generation;
+        distance[index] = newDistance;
+        parent[index] = newParent;
+    }
+
+    private void prepare(int nodeCount) {
+        if (distance.length < nodeCount) {
+            int capacity = Math.max(nodeCount, distance.length * 2);
+            distance = new float[capacity];
+            parent = new int[capacity];
+            reachedStamp = new int[capacity];
+            settledStamp = new int[capacity];
+            generation = 0;
+        }
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reachedStamp, 0);
+            Arrays.fill(settledStamp, 0);
+            generation = 1;
+        }
+        frontier.reset(distance.length);
+    }
+}
@@ -25,14 +25,16 @@ public class PromptAnchorData extends DialogFragment {
          * This method is called by the dialog box when its OK button is pressed.
          *
          * @param anchorName       the anchor name
+         * @param zone             the floor or zone the anchor is in, 0 when left empty
          * @param connectedAnchors the connected anchor names
          */
 
 
-        void onOkPressed(String anchorName, ArrayList<String> connectedAnchors);
+        void onOkPressed(String anchorName, int zone, ArrayList<String> connectedAnchors);
     }
 
     private EditText editText;
+    private EditText zoneText;
     private NachoTextView nachoTextView;
 
     private PromptAnchorData.OkListener okListener;
@@ -57,6 +59,7 @@ public class PromptAnchorData extends DialogFragment {
 
 
         editText = dialogView.findViewById(R.id.plain_text_input);
+        zoneText = dialogView.findViewById(R.id.zone_input);
 
         builder
                 .setView(dialogView)
@@ -68,11 +71,19 @@ public class PromptAnchorData extends DialogFragment {
                             if (okListener != null && anchorName != null && anchorName.length() > 0) {
                                 ArrayList<String> connectedAnchors = new ArrayList<>();
                                 connectedAnchors.addAll(nachoTextView.getChipValues());
-                                okListener.onOkPressed(anchorName, connectedAnchors);
+                                okListener.onOkPressed(anchorName, parseZone(), connectedAnchors);
                             }
                         })
                 .setNegativeButton(R.string.cancel, (dialog, which) -> {
                 });
         return builder.create();
     }
+
+    private int parseZone() {
+        try {
+            return Integer.parseInt(zoneText.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.ar.core.examples.java.cloudanchor.InMemoryRoomStore.Room;
+import com.google.ar.core.examples.java.cloudanchor.InMemoryRoomStore.StoredAnchor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snapshots of rooms on disk, one compact binary file per room, so that a room seen before can be
+ * routed over before the database answers. Files are memory-mapped when read; one that cannot be
+ * read is deleted and counts as a miss.
+ *
+ * <p>Thread safe: saves replace the file atomically, so a load sees either the old or the new
+ * snapshot.
+ */
+final class RoomCache {
+    private static final String TAG =
+            CloudAnchorActivity.class.getSimpleName() + "." + RoomCache.class.getSimpleName();
+    // "RMC" followed by the format version.
+    private static final int MAGIC = 0x524d4301;
+    private static final String FILE_PREFIX = "room_";
+
+    private final File directory;
+
+    RoomCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cached snapshot of {@code roomCode}, or null if there is none.
+     */
+    @Nullable
+    Room load(long roomCode) {
+        File file = roomFile(roomCode);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getLong() != roomCode) {
+                throw new IOException("Not a snapshot of room " + roomCode);
+            }
+            long savedAtMillis = buffer.getLong();
+            Room room = new Room();
+            room.adjacencyLastIdx = buffer.getLong();
+            room.adjacency = readString(buffer);
+            int anchorCount = buffer.getInt();
+            for (int i = 0; i < anchorCount; i++) {
+                long idx = buffer.getLong();
+                int zone = buffer.getInt();
+                float[] translation = {buffer.getFloat(), buffer.getFloat(), buffer.getFloat()};
+                int edgeCount = buffer.getInt();
+                Map<Long, Float> edges = new LinkedHashMap<>();
+                for (int j = 0; j < edgeCount; j++) {
+                    edges.put(buffer.getLong(), buffer.getFloat());
+                }
+                String cloudAnchorId = readString(buffer);
+                String name = readString(buffer);
+                room.anchors.put(idx, new StoredAnchor(idx, cloudAnchorId, name, translation, zone, edges));
+            }
+            Log.d(TAG, "Loaded " + anchorCount + " anchors of room " + roomCode + " cached at " + savedAtMillis);
+            return room;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Dropping the cached snapshot of room " + roomCode, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cached snapshot of {@code roomCode}. {@code room} must not change meanwhile.
+     */
+    void save(long roomCode, Room room) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory);
+            return;
+        }
+        File file = roomFile(roomCode);
+        File tmp = new File(directory, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(roomCode);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(room.adjacencyLastIdx);
+            writeString(out, room.adjacency);
+            out.writeInt(room.anchors.size());
+            for (StoredAnchor anchor : room.anchors.values()) {
+                out.writeLong(anchor.idx);
+                out.writeInt(anchor.zone);
+                for (int i = 0; i < 3; i++) {
+                    out.writeFloat(anchor.translation[i]);
+                }
+                out.writeInt(anchor.edges.size());
+                for (Map.Entry<Long, Float> edge : anchor.edges.entrySet()) {
+                    out.writeLong(edge.getKey());
+                    out.writeFloat(edge.getValue());
+                }
+                writeString(out, anchor.cloudAnchorId);
+                writeString(out, anchor.name);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache room " + roomCode, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Could not replace the cached snapshot of room " + roomCode);
+            tmp.delete();
+        }
+    }
+
+    private File roomFile(long roomCode) {
+        return new File(directory, FILE_PREFIX + roomCode);
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
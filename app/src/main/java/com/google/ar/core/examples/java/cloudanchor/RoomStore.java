@@ -0,0 +1,119 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where rooms are stored: room code allocation, anchor publication, and the sync of a room's
+ * anchors and adjacency. {@link FirebaseManager} is the production store; {@link
+ * InMemoryRoomStore} and {@link FileRoomStore} run the same flows without a live service, for
+ * load tests and offline use. The interface uses no Android, ARCore or Firebase types, so stores
+ * and their callers can be exercised off the device.
+ *
+ * <p>Listeners are invoked on the store's callback thread, the main thread for Firebase.
+ */
+interface RoomStore {
+    /**
+     * Listener for a new room code.
+     */
+    interface RoomCodeListener {
+
+        /**
+         * Invoked when a new room code is available.
+         */
+        void onNewRoomCode(Long newRoomCode);
+
+        /**
+         * Invoked if the store failed to hand out a room code.
+         */
+        void onError(RoomStoreError error);
+    }
+
+    /**
+     * Listener for last room Idx. The room's adjacency is the compacted snapshot, which covers the
+     * anchors up to {@code adjacencyLastIdx}, plus the edges published by every later anchor.
+     */
+    interface CloudAnchorIdsListener {
+        /**
+         * Invoked when a new cloud anchor ID is available.
+         */
+        void onCloudAnchorIds(
+                ArrayList<CloudAnchor> resolvingAnchors,
+                @Nullable String serializedAdjacency,
+                long adjacencyLastIdx);
+    }
+
+    /**
+     * Listener for the incremental sync of a room. {@link #onCloudAnchorIds} is invoked once with
+     * the room as it was when the listener was registered, and afterwards only the anchors and
+     * edges that changed are delivered.
+     */
+    interface RoomChangeListener extends CloudAnchorIdsListener {
+        /**
+         * Invoked when another device hosted an anchor in the room. Its edges are delivered along
+         * with it in {@link CloudAnchor#getPublishedEdges}.
+         */
+        void onAnchorAdded(CloudAnchor cloudAnchor);
+
+        /**
+         * Invoked when edges were added to an anchor that was delivered before.
+         */
+        void onAnchorEdgesAdded(Long anchorId, List<Edge> newEdges);
+
+        /**
+         * Invoked when an anchor was deleted from the room.
+         */
+        void onAnchorRemoved(Long anchorId);
+    }
+
+    /**
+     * Listener for the write that publishes a hosted anchor.
+     */
+    interface AnchorStoredListener {
+        /**
+         * Invoked once the anchor is stored, or with the error that rejected the
+         * write. Nothing of the anchor was written in that case.
+         */
+        void onAnchorStored(Long roomIdx, @Nullable RoomStoreError error);
+    }
+
+    /**
+     * Gets a new room code. Invokes the listener method when a new room code is available.
+     */
+    void getNewRoomCode(RoomCodeListener listener);
+
+    /**
+     * Stores the given anchor ID in the given room code, together with the edges it adds to the
+     * room's adjacency. When {@code adjacencySnapshot} is non-null it replaces the room's compacted
+     * adjacency, which must then include every anchor up to {@code roomIdx}. {@code translation} is
+     * the x, y, z of the anchor's pose when it was hosted, and {@code zone} is the floor or area the
+     * anchor is in. The anchor is stored or rejected as a whole, and {@code
+     * listener} is told which.
+     */
+    void storeAnchorIdInRoom(Long roomCode, Long roomIdx, String cloudAnchorId, String cloudAnchorName, float[] translation, int zone, List<Edge> newEdges, @Nullable String adjacencySnapshot, AnchorStoredListener listener);
+
+    /**
+     * Registers a listener that is handed the whole room whenever it changes. Replaces the listener
+     * registered before.
+     */
+    void registerNewListenerForRoom(Long roomCode, CloudAnchorIdsListener listener);
+
+    /**
+     * Registers a listener that is handed the room once, and afterwards only the anchors and edges
+     * that changed. Replaces the listener registered before.
+     */
+    void registerRoomChangeListener(Long roomCode, RoomChangeListener listener);
+
+    /**
+     * Unregisters the room listener, if any.
+     */
+    void clearRoomListener();
+
+    /**
+     * Unregisters the room listener and releases what the store holds, such as its threads. The
+     * store must not be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,45 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Why a {@link RoomStore} operation failed, in the same shape for every store.
+ */
+final class RoomStoreError {
+    private final String message;
+    @Nullable
+    private final Throwable cause;
+
+    RoomStoreError(String message, @Nullable Throwable cause) {
+        this.message = message;
+        this.cause = cause;
+    }
+
+    static RoomStoreError fromException(Exception exception) {
+        return new RoomStoreError(String.valueOf(exception.getMessage()), exception);
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the error the store reported, if any, such as a database or I/O exception.
+     */
+    @Nullable
+    Throwable getCause() {
+        return cause;
+    }
+
+    /**
+     * Returns an exception describing the error, for logging.
+     */
+    Exception toException() {
+        return new Exception(message, cause);
+    }
+
+    @Override
+    public String toString() {
+        return "RoomStoreError{" + message + "}";
+    }
+}
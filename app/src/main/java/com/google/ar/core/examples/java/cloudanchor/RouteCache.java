@@ -0,0 +1,129 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU caches of routes keyed by (source, destination), and of whole shortest path trees
+ * keyed by source. Every entry belongs to a graph version; looking anything up with a newer version
+ * drops everything cached for the older one, and results of searches that ran on an older version
+ * are ignored.
+ *
+ * <p>All methods are synchronized so the cache can be shared with background searches.
+ */
+final class RouteCache {
+    private final LinkedHashMap<Long, List<Long>> routes;
+    private final LinkedHashMap<Long, int[]> trees;
+    private long graphVersion = -1;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long treeHitCount = 0;
+
+    RouteCache(int maxRoutes, int maxTrees) {
+        routes = new LinkedHashMap<Long, List<Long>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<Long>> eldest) {
+                return evictIf(size() > maxRoutes);
+            }
+        };
+        trees = new LinkedHashMap<Long, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                return evictIf(size() > maxTrees);
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the cached route, or null on a miss.
+     */
+    synchronized List<Long> getRoute(long version, long source, long dest) {
+        if (!checkVersion(version)) {
+            missCount++;
+            return null;
+        }
+        List<Long> route = routes.get(key(source, dest));
+        if (route == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return new ArrayList<>(route);
+    }
+
+    synchronized void putRoute(long version, long source, long dest, List<Long> route) {
+        if (checkVersion(version)) {
+            routes.put(key(source, dest), new ArrayList<>(route));
+        }
+    }
+
+    /**
+     * Returns the cached parent array of the shortest path tree rooted at {@code source}, or null.
+     * The array must not be modified.
+     */
+    synchronized int[] getTree(long version, long source) {
+        if (!checkVersion(version)) {
+            return null;
+        }
+        int[] tree = trees.get(source);
+        if (tree != null) {
+            treeHitCount++;
+        }
+        return tree;
+    }
+
+    synchronized void putTree(long version, long source, int[] parents) {
+        if (checkVersion(version)) {
+            trees.put(source, parents);
+        }
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Number of route misses that were answered from a cached shortest path tree.
+     */
+    synchronized long getTreeHitCount() {
+        return treeHitCount;
+    }
+
+    /**
+     * Moves the cache to {@code version} if it is newer, and returns false if it is older.
+     */
+    private boolean checkVersion(long version) {
+        if (version < graphVersion) {
+            return false;
+        }
+        if (version > graphVersion) {
+            routes.clear();
+            trees.clear();
+            graphVersion = version;
+        }
+        return true;
+    }
+
+    private boolean evictIf(boolean overCapacity) {
+        if (overCapacity) {
+            evictionCount++;
+        }
+        return overCapacity;
+    }
+
+    private static long key(long source, long dest) {
+        return (source << 32) | (dest & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,222 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import androidx.annotation.Nullable;
+
+import com.google.ar.sceneform.math.Vector3;
+import com.google.ar.sceneform.rendering.Material;
+import com.google.ar.sceneform.rendering.ModelRenderable;
+import com.google.ar.sceneform.rendering.RenderableDefinition;
+import com.google.ar.sceneform.rendering.Vertex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One mesh for a whole route: a thin square tube along every segment of the route's polyline, all
+ * in a single {@link RenderableDefinition} and drawn by a single renderable.
+ *
+ * <p>The vertices and indices are kept between routes. Each segment always uses the same slots, so
+ * a new route only rewrites vertex positions and normals, and the renderable's buffers are
+ * refilled in place by {@link ModelRenderable#updateFromDefinition}. Nothing is allocated unless
+ * the route is longer than every route before it.
+ *
+ * <p>Must be used on the UI thread.
+ */
+final class RouteMesh {
+    // Half the width of the tube, in meters.
+    private static final float HALF_WIDTH = .005f;
+    private static final int SIDES = 4;
+    private static final int VERTICES_PER_SEGMENT = SIDES * 4;
+    private static final int INDICES_PER_SEGMENT = SIDES * 6;
+    private static final float MIN_SEGMENT_LENGTH = 1e-4f;
+
+    private static final Vertex.UvCoordinate UV_START_LEFT = new Vertex.UvCoordinate(0f, 0f);
+    private static final Vertex.UvCoordinate UV_START_RIGHT = new Vertex.UvCoordinate(1f, 0f);
+    private static final Vertex.UvCoordinate UV_END_RIGHT = new Vertex.UvCoordinate(1f, 1f);
+    private static final Vertex.UvCoordinate UV_END_LEFT = new Vertex.UvCoordinate(0f, 1f);
+
+    // Every vertex and index made so far; the definition's lists are prefixes of these.
+    private final ArrayList<Vertex> vertexPool = new ArrayList<>();
+    private final ArrayList<Integer> indexPool = new ArrayList<>();
+    private final ArrayList<Vertex> vertices = new ArrayList<>();
+    private final ArrayList<Integer> triangleIndices = new ArrayList<>();
+    private final RenderableDefinition definition;
+
+    // Face normals and tangents of the segment being written, as side, up, -side, -up.
+    private final float[][] normals = new float[SIDES][3];
+    private final float[][] tangents = new float[SIDES][3];
+
+    @Nullable
+    private ModelRenderable renderable = null;
+    private int segmentCount = 0;
+
+    RouteMesh(Material material) {
+        RenderableDefinition.Submesh submesh = RenderableDefinition.Submesh.builder()
+                .setTriangleIndices(triangleIndices)
+                .setMaterial(material)
+                .build();
+        definition = RenderableDefinition.builder()
+                .setVertices(vertices)
+                .setSubmeshes(Collections.singletonList(submesh))
+                .build();
+    }
+
+    /**
+     * Rebuilds the mesh along {@code points}, in the coordinates of the node showing it. A null
+     * point breaks the line: no segment is drawn to or from it.
+     *
+     * @return the renderable showing the route, always the same one, or null if the route has no
+     * segment to draw.
+     */
+    @Nullable
+    ModelRenderable update(List<Vector3> points) {
+        int segment = 0;
+        for (int i = 0; i + 1 < points.size(); i++) {
+            Vector3 start = points.get(i);
+            Vector3 end = points.get(i + 1);
+            if (start == null || end == null) {
+                continue;
+            }
+            ensureSegments(segment + 1);
+            writeSegment(segment, start, end);
+            segment++;
+        }
+        segmentCount = segment;
+        if (segmentCount == 0) {
+            return null;
+        }
+        resize(vertices, vertexPool, segmentCount * VERTICES_PER_SEGMENT);
+        resize(triangleIndices, indexPool, segmentCount * INDICES_PER_SEGMENT);
+
+        if (renderable == null) {
+            // A renderable built from a definition is ready as soon as build returns.
+            renderable = ModelRenderable.builder().setSource(definition).build().join();
+        } else {
+            renderable.updateFromDefinition(definition);
+        }
+        return renderable;
+    }
+
+    /**
+     * Returns the renderable showing the route, or null before the first route with a segment.
+     */
+    @Nullable
+    ModelRenderable getRenderable() {
+        return renderable;
+    }
+
+    /**
+     * Returns the number of segments drawn by the last update.
+     */
+    int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * Makes sure the pools hold the vertices and indices of {@code count} segments.
+     */
+    private void ensureSegments(int count) {
+        while (vertexPool.size() < count * VERTICES_PER_SEGMENT) {
+            int corner = vertexPool.size() % 4;
+            vertexPool.add(Vertex.builder()
+                    .setPosition(Vector3.zero())
+                    .setNormal(Vector3.zero())
+                    .setUvCoordinate(corner == 0 ? UV_START_LEFT
+                            : corner == 1 ? UV_START_RIGHT
+                            : corner == 2 ? UV_END_RIGHT
+                            : UV_END_LEFT)
+                    .build());
+        }
+        while (indexPool.size() < count * INDICES_PER_SEGMENT) {
+            int face = indexPool.size() / 6;
+            int base = face * 4;
+            // Two counter-clockwise triangles, seen from outside the face.
+            indexPool.add(base);
+            indexPool.add(base + 2);
+            indexPool.add(base + 1);
+            indexPool.add(base);
+            indexPool.add(base + 3);
+            indexPool.add(base + 2);
+        }
+    }
+
+    private void writeSegment(int segment, Vector3 start, Vector3 end) {
+        float dx = end.x - start.x;
+        float dy = end.y - start.y;
+        float dz = end.z - start.z;
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (length < MIN_SEGMENT_LENGTH) {
+            // Collapse the segment; its faces have no area.
+            dx = 0f;
+            dy = 0f;
+            dz = -1f;
+        } else {
+            dx /= length;
+            dy /= length;
+            dz /= length;
+        }
+
+        // side = direction x up, falling back to the forward axis for vertical segments.
+        float sx = -dz;
+        float sy = 0f;
+        float sz = dx;
+        float sideLength = (float) Math.sqrt(sx * sx + sz * sz);
+        if (sideLength < 1e-6f) {
+            sx = dy;
+            sy = 0f;
+            sz = 0f;
+            sideLength = Math.abs(dy);
+        }
+        sx /= sideLength;
+        sy /= sideLength;
+        sz /= sideLength;
+        // up = side x direction.
+        float ux = sy * dz - sz * dy;
+        float uy = sz * dx - sx * dz;
+        float uz = sx * dy - sy * dx;
+
+        set(normals[0], sx, sy, sz);
+        set(tangents[0], ux, uy, uz);
+        set(normals[1], ux, uy, uz);
+        set(tangents[1], -sx, -sy, -sz);
+        set(normals[2], -sx, -sy, -sz);
+        set(tangents[2], -ux, -uy, -uz);
+        set(normals[3], -ux, -uy, -uz);
+        set(tangents[3], sx, sy, sz);
+
+        int first = segment * VERTICES_PER_SEGMENT;
+        for (int face = 0; face < SIDES; face++) {
+            float[] n = normals[face];
+            float[] t = tangents[face];
+            int base = first + face * 4;
+            writeVertex(vertexPool.get(base), start, n, t, -1f);
+            writeVertex(vertexPool.get(base + 1), start, n, t, 1f);
+            writeVertex(vertexPool.get(base + 2), end, n, t, 1f);
+            writeVertex(vertexPool.get(base + 3), end, n, t, -1f);
+        }
+    }
+
+    private static void writeVertex(Vertex vertex, Vector3 center, float[] normal, float[] tangent, float across) {
+        vertex.getPosition().set(
+                center.x + (normal[0] + across * tangent[0]) * HALF_WIDTH,
+                center.y + (normal[1] + across * tangent[1]) * HALF_WIDTH,
+                center.z + (normal[2] + across * tangent[2]) * HALF_WIDTH);
+        vertex.getNormal().set(normal[0], normal[1], normal[2]);
+    }
+
+    private static void set(float[] vector, float x, float y, float z) {
+        vector[0] = x;
+        vector[1] = y;
+        vector[2] = z;
+    }
+
+    private static <T> void resize(ArrayList<T> list, ArrayList<T> pool, int size) {
+        while (list.size() > size) {
+            list.remove(list.size() - 1);
+        }
+        while (list.size() < size) {
+            list.add(pool.get(list.size()));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.google.ar.sceneform.Node;
+import com.google.ar.sceneform.NodeParent;
+import com.google.ar.sceneform.math.Quaternion;
+import com.google.ar.sceneform.math.Vector3;
+import com.google.ar.sceneform.rendering.Color;
+import com.google.ar.sceneform.rendering.MaterialCache;
+import com.google.ar.sceneform.rendering.ModelRenderable;
+import com.google.ar.sceneform.rendering.Renderable;
+import com.google.ar.sceneform.rendering.ShapeFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts the current route in the scene: the route line and the marker at its destination. The
+ * presenter owns every node it shows. Showing a route first takes the previous one down, returning
+ * its nodes to a pool that the new route takes them from again, so once the pool is warm re-routing
+ * creates no nodes, and the line reuses one renderable through {@link RouteMesh}.
+ *
+ * <p>The line is built in world space from the positions of the route's anchor nodes, and is
+ * rebuilt in place whenever ARCore moves one of those anchors, so that it does not drift away from
+ * them.
+ *
+ * <p>The marker is swapped for a small dot at mid range and hidden when far or off screen, as
+ * decided by a {@link VisibilityManager}.
+ *
+ * <p>Must be used on the UI thread.
+ */
+final class RoutePresenter {
+    private static final Vector3 POSITION_ZERO = new Vector3(0f, 0f, 0f);
+    private static final Vector3 SCALE_ONE = new Vector3(1f, 1f, 1f);
+    private static final Quaternion ROTATION_IDENTITY = new Quaternion();
+    // In meters.
+    private static final float WAYPOINT_RADIUS = .2f;
+    private static final float WAYPOINT_DOT_RADIUS = .05f;
+    // How far an anchor of the route may move before the line is rebuilt, in meters.
+    private static final float ROUTE_MOVE_TOLERANCE = .01f;
+
+    private final Context context;
+    private final NodeParent scene;
+    private final Color lineColor;
+
+    private final ArrayDeque<Node> idleNodes = new ArrayDeque<>();
+    private final ArrayList<Node> activeNodes = new ArrayList<>();
+    @Nullable
+    private RouteMesh routeMesh = null;
+    // Anchor nodes of the shown route, null where the line breaks, and the points the line was
+    // last built from.
+    private final ArrayList<Node> routeAnchors = new ArrayList<>();
+    private final ArrayList<Vector3> routePoints = new ArrayList<>();
+    @Nullable
+    private Node routeNode = null;
+    // Reused by followAnchors, which runs every frame.
+    private final Vector3 anchorPosition = new Vector3();
+    @Nullable
+    private ModelRenderable waypointDotRenderable = null;
+    @Nullable
+    private Node waypointNode = null;
+    @Nullable
+    private Node waypointDotNode = null;
+    private int nodeCount = 0;
+    private long routeCount = 0;
+    // Bumped on every teardown, so that a line or dot whose material arrives late is not shown
+    // over a newer route.
+    private long generation = 0;
+
+    RoutePresenter(Context context, NodeParent scene, Color lineColor) {
+        this.context = context;
+        this.scene = scene;
+        this.lineColor = lineColor;
+    }
+
+    /**
+     * Replaces the shown route with a line through {@code anchorNodes}. A null node breaks the
+     * line, see {@link RouteMesh#update}.
+     */
+    void showRoute(List<? extends Node> anchorNodes) {
+        clear();
+        routeCount++;
+        routeAnchors.addAll(anchorNodes);
+        for (Node anchorNode : anchorNodes) {
+            routePoints.add(anchorNode == null ? null : anchorNode.getWorldPosition());
+        }
+        long routeGeneration = generation;
+        MaterialCache.getInstance().get(context, MaterialCache.Kind.OPAQUE_COLOR, lineColor)
+                .thenAccept(
+                        material -> {
+                            if (routeGeneration != generation) {
+                                return;
+                            }
+                            if (routeMesh == null) {
+                                routeMesh = new RouteMesh(material);
+                                MaterialCache.getInstance().retain(MaterialCache.Kind.OPAQUE_COLOR, lineColor, routeMesh);
+                            }
+                            ModelRenderable model = routeMesh.update(routePoints);
+                            if (model != null) {
+                                routeNode = acquireNode(scene);
+                                routeNode.setRenderable(model);
+                            }
+                        });
+    }
+
+    /**
+     * Shows {@code renderable} under {@code destination} until the route is taken down, and returns
+     * the node showing it.
+     */
+    Node showWaypoint(NodeParent destination, Renderable renderable) {
+        Node node = acquireNode(destination);
+        node.setRenderable(renderable);
+        waypointNode = node;
+        long waypointGeneration = generation;
+        MaterialCache.getInstance().get(context, MaterialCache.Kind.OPAQUE_COLOR, lineColor)
+                .thenAccept(
+                        material -> {
+                            if (waypointGeneration != generation) {
+                                return;
+                            }
+                            if (waypointDotRenderable == null) {
+                                waypointDotRenderable = ShapeFactory.makeSphere(WAYPOINT_DOT_RADIUS, Vector3.zero(), material);
+                                MaterialCache.getInstance().retain(MaterialCache.Kind.OPAQUE_COLOR, lineColor, waypointDotRenderable);
+                            }
+                            waypointDotNode = acquireNode(destination);
+                            waypointDotNode.setRenderable(waypointDotRenderable);
+                            waypointDotNode.setEnabled(false);
+                        });
+        return node;
+    }
+
+    /**
+     * Rebuilds the line if ARCore moved any anchor of the route since it was built. Called once per
+     * frame.
+     */
+    void followAnchors() {
+        if (routeNode == null) {
+            return;
+        }
+        boolean moved = false;
+        for (int i = 0; i < routeAnchors.size(); i++) {
+            Node anchorNode = routeAnchors.get(i);
+            if (anchorNode == null) {
+                continue;
+            }
+            // getWorldPosition would allocate a copy per anchor and frame.
+            anchorNode.getWorldModelMatrix().decomposeTranslation(anchorPosition);
+            Vector3 point = routePoints.get(i);
+            float dx = anchorPosition.x - point.x;
+            float dy = anchorPosition.y - point.y;
+            float dz = anchorPosition.z - point.z;
+            if (dx * dx + dy * dy + dz * dz > ROUTE_MOVE_TOLERANCE * ROUTE_MOVE_TOLERANCE) {
+                point.set(anchorPosition);
+                moved = true;
+            }
+        }
+        if (moved) {
+            // Same renderable, refilled in place.
+            routeMesh.update(routePoints);
+        }
+    }
+
+    /**
+     * Shows the destination marker in full, as a dot, or not at all, as {@code visibility} decides
+     * for this frame.
+     */
+    void updateLevelOfDetail(VisibilityManager visibility) {
+        if (waypointNode == null) {
+            return;
+        }
+        Vector3 position = waypointNode.getWorldPosition();
+        VisibilityManager.Level level = visibility.classify(
+                VisibilityManager.Kind.MODEL, position.x, position.y, position.z, WAYPOINT_RADIUS);
+        // Until the dot is made, the marker stands in for it.
+        waypointNode.setEnabled(level == VisibilityManager.Level.FULL
+                || (level == VisibilityManager.Level.DOT && waypointDotNode == null));
+        if (waypointDotNode != null) {
+            waypointDotNode.setEnabled(level == VisibilityManager.Level.DOT);
+        }
+    }
+
+    /**
+     * Takes the shown route down.
+     */
+    void clear() {
+        generation++;
+        // Pushed in reverse, so the next route takes the nodes in the same order and each node
+        // usually gets back the renderable it already holds.
+        for (int i = activeNodes.size() - 1; i >= 0; i--) {
+            Node node = activeNodes.get(i);
+            node.setParent(null);
+            idleNodes.push(node);
+        }
+        activeNodes.clear();
+        routeAnchors.clear();
+        routePoints.clear();
+        routeNode = null;
+        waypointNode = null;
+        waypointDotNode = null;
+    }
+
+    /**
+     * Returns the number of nodes the presenter has created; they are all either shown or pooled.
+     */
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the number of nodes currently shown.
+     */
+    int getActiveNodeCount() {
+        return activeNodes.size();
+    }
+
+    /**
+     * Returns the number of renderables the presenter has created.
+     */
+    int getRenderableCount() {
+        int count = routeMesh != null && routeMesh.getRenderable() != null ? 1 : 0;
+        return waypointDotRenderable != null ? count + 1 : count;
+    }
+
+    /**
+     * Returns the number of routes shown so far.
+     */
+    long getRouteCount() {
+        return routeCount;
+    }
+
+    private Node acquireNode(NodeParent parent) {
+        Node node = idleNodes.poll();
+        if (node == null) {
+            node = new Node();
+            nodeCount++;
+        }
+        node.setLocalPosition(POSITION_ZERO);
+        node.setLocalRotation(ROTATION_IDENTITY);
+        node.setLocalScale(SCALE_ONE);
+        node.setEnabled(true);
+        node.setParent(parent);
+        activeNodes.add(node);
+        return node;
+    }
+}
@@ -0,0 +1,101 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Keeps only the anchors around the user's position on a route resolved: a few behind and
+ * {@code lookahead} ahead. Anchors that fall out of the window are released, and are requested
+ * again if the user turns back.
+ *
+ * <p>Instances are not thread safe.
+ */
+final class RouteResolveWindow {
+    /**
+     * Resolves and releases anchors on behalf of the window.
+     */
+    interface Resolver {
+        void resolve(long anchorId);
+
+        void release(long anchorId);
+    }
+
+    private final long[] route;
+    private final HashMap<Long, Integer> routeIndex = new HashMap<>();
+    private final boolean[] requested;
+    private final int lookahead;
+    private final int keepBehind;
+    private final Resolver resolver;
+    private int userIndex = -1;
+
+    /**
+     * @param route the anchors of the route from the source to the destination
+     */
+    RouteResolveWindow(List<Long> route, int lookahead, int keepBehind, Resolver resolver) {
+        this.route = new long[route.size()];
+        for (int i = 0; i < route.size(); i++) {
+            this.route[i] = route.get(i);
+            routeIndex.put(route.get(i), i);
+        }
+        this.requested = new boolean[route.size()];
+        this.lookahead = lookahead;
+        this.keepBehind = keepBehind;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Requests the anchors at the start of the route.
+     */
+    void start() {
+        moveTo(0);
+    }
+
+    boolean isRequested(long anchorId) {
+        Integer index = routeIndex.get(anchorId);
+        return index != null && requested[index];
+    }
+
+    /**
+     * Moves the window to the given anchor if it is on the route. Returns whether it is.
+     */
+    boolean onUserNear(long anchorId) {
+        Integer index = routeIndex.get(anchorId);
+        if (index == null) {
+            return false;
+        }
+        if (index != userIndex) {
+            moveTo(index);
+        }
+        return true;
+    }
+
+    /**
+     * Releases every anchor the window requested, except those {@code next} has requested too, for
+     * when the route is replaced or navigation ends.
+     */
+    void releaseAll(RouteResolveWindow next) {
+        for (int i = 0; i < route.length; i++) {
+            if (requested[i] && (next == null || !next.isRequested(route[i]))) {
+                resolver.release(route[i]);
+            }
+            requested[i] = false;
+        }
+        userIndex = -1;
+    }
+
+    private void moveTo(int index) {
+        userIndex = index;
+        int from = Math.max(0, index - keepBehind);
+        int to = Math.min(route.length - 1, index + lookahead);
+        for (int i = 0; i < route.length; i++) {
+            boolean inWindow = i >= from && i <= to;
+            if (inWindow && !requested[i]) {
+                requested[i] = true;
+                resolver.resolve(route[i]);
+            } else if (!inWindow && requested[i]) {
+                requested[i] = false;
+                resolver.release(route[i]);
+            }
+        }
+    }
+}
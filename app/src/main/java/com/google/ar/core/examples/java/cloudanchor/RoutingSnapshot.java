@@ -0,0 +1,62 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import java.util.List;
+
+/**
+ * Everything a route search needs from a {@link CloudAnchorMap}, captured at one graph version so
+ * that the search can run away from the thread that owns the map.
+ */
+final class RoutingSnapshot {
+    final long graphVersion;
+    final AnchorGraph graph;
+    final CloudAnchorMap.RoutingMode routingMode;
+    final float[] positions;
+    final float heuristicScale;
+    final boolean cacheShortestPathTrees;
+    // Router for queries between zones, or null when the whole map is one zone.
+    final HierarchicalRouter zoneRouter;
+
+    RoutingSnapshot(
+            long graphVersion,
+            AnchorGraph graph,
+            CloudAnchorMap.RoutingMode routingMode,
+            float[] positions,
+            float heuristicScale,
+            boolean cacheShortestPathTrees,
+            HierarchicalRouter zoneRouter) {
+        this.graphVersion = graphVersion;
+        this.graph = graph;
+        this.routingMode = routingMode;
+        this.positions = positions;
+        this.heuristicScale = heuristicScale;
+        this.cacheShortestPathTrees = cacheShortestPathTrees;
+        this.zoneRouter = zoneRouter;
+    }
+
+    /**
+     * Looks the route up in {@code routeCache}, and otherwise searches with {@code pathFinder} and
+     * caches the result. Routes between zones go through the zone router.
+     */
+    List<Long> findPath(PathFinder pathFinder, RouteCache routeCache, long source, long dest) {
+        List<Long> path = routeCache.getRoute(graphVersion, source, dest);
+        if (path != null) {
+            return path;
+        }
+        if (zoneRouter != null && zoneRouter.zoneOf(source) != zoneRouter.zoneOf(dest)) {
+            path = zoneRouter.findPath(pathFinder, source, dest);
+        } else if (cacheShortestPathTrees) {
+            int[] tree = routeCache.getTree(graphVersion, source);
+            if (tree == null) {
+                tree = pathFinder.shortestPathTree(graph, source);
+                routeCache.putTree(graphVersion, source, tree);
+            }
+            path = PathFinder.pathFromTree(tree, source, dest);
+        } else if (routingMode == CloudAnchorMap.RoutingMode.A_STAR) {
+            path = pathFinder.findPath(graph, source, dest, positions, heuristicScale);
+        } else {
+            path = pathFinder.findPath(graph, source, dest);
+        }
+        routeCache.putRoute(graphVersion, source, dest, path);
+        return path;
+    }
+}
@@ -0,0 +1,124 @@
+package com.google.ar.core.examples.java.cloudanchor;
+
+import com.google.ar.sceneform.Camera;
+import com.google.ar.sceneform.math.Matrix;
+import com.google.ar.sceneform.math.Vector3;
+
+/**
+ * Decides each frame how much of an anchor's decoration is drawn: the full label or model when
+ * near, a dot at mid range, and nothing beyond the far band or outside the camera's view frustum.
+ * Full representations also have a budget per frame; once it is used up, the rest are drawn as
+ * dots. Callers ask for the nearest objects first, so the budget goes to what is closest.
+ *
+ * <p>Must be used on the UI thread.
+ */
+final class VisibilityManager {
+    enum Level {
+        FULL,
+        DOT,
+        HIDDEN,
+    }
+
+    enum Kind {
+        LABEL,
+        MODEL,
+    }
+
+    private final float labelFullDistanceSquared;
+    private final float labelDotDistanceSquared;
+    private final int maxFullLabels;
+    private final float modelFullDistanceSquared;
+    private final float modelDotDistanceSquared;
+    private final int maxFullModels;
+
+    private final Matrix viewProjection = new Matrix();
+    private float projectionScaleX;
+    private float projectionScaleY;
+    private final Vector3 cameraPosition = new Vector3();
+    private int fullLabels = 0;
+    private int fullModels = 0;
+
+    /**
+     * Distances are in meters. A label or model is drawn in full up to its full distance, as a dot
+     * up to its dot distance, and not at all beyond.
+     */
+    VisibilityManager(float labelFullDistance, float labelDotDistance, int maxFullLabels,
+                      float modelFullDistance, float modelDotDistance, int maxFullModels) {
+        this.labelFullDistanceSquared = labelFullDistance * labelFullDistance;
+        this.labelDotDistanceSquared = labelDotDistance * labelDotDistance;
+        this.maxFullLabels = maxFullLabels;
+        this.modelFullDistanceSquared = modelFullDistance * modelFullDistance;
+        this.modelDotDistanceSquared = modelDotDistance * modelDotDistance;
+        this.maxFullModels = maxFullModels;
+    }
+
+    /**
+     * Takes the camera's pose and projection for this frame and resets the budgets. Call once per
+     * frame before {@link #classify}.
+     */
+    void beginFrame(Camera camera) {
+        Matrix projection = camera.getProjectionMatrix();
+        Matrix.multiply(projection, camera.getViewMatrix(), viewProjection);
+        projectionScaleX = Math.abs(projection.data[0]);
+        projectionScaleY = Math.abs(projection.data[5]);
+        cameraPosition.set(camera.getWorldPosition());
+        fullLabels = 0;
+        fullModels = 0;
+    }
+
+    /**
+     * Returns the squared distance from the camera to the given world position.
+     */
+    float distanceSquared(float x, float y, float z) {
+        float dx = x - cameraPosition.x;
+        float dy = y - cameraPosition.y;
+        float dz = z - cameraPosition.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Returns how an object of {@code kind} at the given world position, within {@code radius}
+     * meters of it, should be drawn this frame. A full level counts against the kind's budget.
+     */
+    Level classify(Kind kind, float x, float y, float z, float radius) {
+        if (!inFrustum(x, y, z, radius)) {
+            return Level.HIDDEN;
+        }
+        float distanceSquared = distanceSquared(x, y, z);
+        boolean label = kind == Kind.LABEL;
+        if (distanceSquared > (label ? labelDotDistanceSquared : modelDotDistanceSquared)) {
+            return Level.HIDDEN;
+        }
+        if (distanceSquared > (label ? labelFullDistanceSquared : modelFullDistanceSquared)) {
+            return Level.DOT;
+        }
+        if (label) {
+            if (fullLabels >= maxFullLabels) {
+                return Level.DOT;
+            }
+            fullLabels++;
+        } else {
+            if (fullModels >= maxFullModels) {
+                return Level.DOT;
+            }
+            fullModels++;
+        }
+        return Level.FULL;
+    }
+
+    /**
+     * Returns whether a sphere of {@code radius} around the given world position may be on screen.
+     */
+    private boolean inFrustum(float x, float y, float z, float radius) {
+        float[] m = viewProjection.data;
+        float clipX = x * m[0] + y * m[4] + z * m[8] + m[12];
+        float clipY = x * m[1] + y * m[5] + z * m[9] + m[13];
+        float clipW = x * m[3] + y * m[7] + z * m[11] + m[15];
+        // w is the distance in front of the camera, so the sphere is behind it when w < -radius.
+        if (clipW < -radius) {
+            return false;
+        }
+        return Math.abs(clipX) <= clipW + radius * projectionScaleX
+                && Math.abs(clipY) <= clipW + radius * projectionScaleY;
+    }
+}
@@ -0,0 +1,174 @@
+package com.google.ar.sceneform.rendering;
+
+import android.content.Context;
+import android.os.Build;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import com.google.ar.sceneform.resources.ResourceHolder;
+import com.google.ar.sceneform.utilities.AndroidPreconditions;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Shares the colored {@link Material}s made by {@link MaterialFactory} between renderables, keyed
+ * by material kind and color. Drawing many shapes of one color then costs one material instance
+ * instead of one per shape, and requests made while the material is still loading share that load.
+ *
+ * <p>Renderables using a shared material should be registered as its owners with {@link #retain}.
+ * Owners are tracked with a {@link CleanupRegistry}: once every owner of a material has been
+ * garbage collected, the cache lets go of the material, and the material's own cleanup in the
+ * {@link ResourceManager} releases its Filament instance. A material that never had an owner stays
+ * cached until the resources are destroyed. The cache is a {@link ResourceHolder} of the {@link
+ * ResourceManager}, so it is reclaimed every frame and destroyed with other resources.
+ *
+ * <p>Changing a parameter of a shared material changes it for every owner; use {@link
+ * Material#makeCopy()} for a material that must differ.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+public final class MaterialCache implements ResourceHolder {
+  /** The {@link MaterialFactory} method a material is made with. */
+  public enum Kind {
+    /** {@link MaterialFactory#makeOpaqueWithColor(Context, Color)}. */
+    OPAQUE_COLOR,
+    /** {@link MaterialFactory#makeTransparentWithColor(Context, Color)}. */
+    TRANSPARENT_COLOR,
+  }
+
+  private static final class Key {
+    private final Kind kind;
+    private final float r;
+    private final float g;
+    private final float b;
+    private final float a;
+
+    Key(Kind kind, Color color) {
+      this.kind = kind;
+      this.r = color.r;
+      this.g = color.g;
+      this.b = color.b;
+      this.a = color.a;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return kind == key.kind
+          && Float.compare(r, key.r) == 0
+          && Float.compare(g, key.g) == 0
+          && Float.compare(b, key.b) == 0
+          && Float.compare(a, key.a) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = kind.hashCode();
+      hash = 31 * hash + Float.floatToIntBits(r);
+      hash = 31 * hash + Float.floatToIntBits(g);
+      hash = 31 * hash + Float.floatToIntBits(b);
+      hash = 31 * hash + Float.floatToIntBits(a);
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+    private final CompletableFuture<Material> material;
+    private int owners = 0;
+
+    Entry(CompletableFuture<Material> material) {
+      this.material = material;
+    }
+  }
+
+  @Nullable private static MaterialCache instance = null;
+
+  private final HashMap<Key, Entry> entries = new HashMap<>();
+  private final CleanupRegistry<Object> ownerCleanupRegistry = new CleanupRegistry<>();
+
+  public static MaterialCache getInstance() {
+    if (instance == null) {
+      instance = new MaterialCache();
+      ResourceManager.getInstance().addResourceHolder(instance);
+    }
+
+    return instance;
+  }
+
+  private MaterialCache() {}
+
+  /**
+   * Returns the shared material of the given kind and color, making it with {@link
+   * MaterialFactory} the first time it is asked for.
+   */
+  @SuppressWarnings("AndroidApiChecker")
+  // CompletableFuture requires api level 24
+  public CompletableFuture<Material> get(Context context, Kind kind, Color color) {
+    AndroidPreconditions.checkUiThread();
+    Key key = new Key(kind, color);
+    Entry entry = entries.get(key);
+    if (entry == null || entry.material.isCompletedExceptionally()) {
+      CompletableFuture<Material> material;
+      switch (kind) {
+        case TRANSPARENT_COLOR:
+          material = MaterialFactory.makeTransparentWithColor(context, color);
+          break;
+        case OPAQUE_COLOR:
+        default:
+          material = MaterialFactory.makeOpaqueWithColor(context, color);
+          break;
+      }
+      entry = new Entry(material);
+      entries.put(key, entry);
+    }
+    return entry.material;
+  }
+
+  /**
+   * Registers {@code owner}, usually the renderable using the material, as an owner of the shared
+   * material of the given kind and color. The material stays cached while it has owners that have
+   * not been garbage collected.
+   */
+  public void retain(Kind kind, Color color, Object owner) {
+    AndroidPreconditions.checkUiThread();
+    Key key = new Key(kind, color);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return;
+    }
+    entry.owners++;
+    ownerCleanupRegistry.register(owner, () -> release(key, entry));
+  }
+
+  /** Returns the number of materials the cache holds. */
+  public int size() {
+    return entries.size();
+  }
+
+  private void release(Key key, Entry entry) {
+    entry.owners--;
+    // The key may have been loaded again since this entry was dropped.
+    if (entry.owners <= 0 && entries.get(key) == entry) {
+      entries.remove(key);
+    }
+  }
+
+  @Override
+  public long reclaimReleasedResources() {
+    ownerCleanupRegistry.reclaimReleasedResources();
+    return entries.size();
+  }
+
+  @Override
+  public void destroyAllResources() {
+    ownerCleanupRegistry.destroyAllResources();
+    Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      iterator.next().getValue().material.cancel(false);
+      iterator.remove();
+    }
+  }
+}
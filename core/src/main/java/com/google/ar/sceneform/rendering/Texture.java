@@ -5,6 +5,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import com.google.android.filament.android.TextureHelper;
@@ -15,6 +17,7 @@ import com.google.ar.sceneform.utilities.AndroidPreconditions;
 import com.google.ar.sceneform.utilities.LoadHelper;
 import com.google.ar.sceneform.utilities.Preconditions;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 
@@ -24,6 +27,8 @@ import java.util.concurrent.CompletableFuture;
 @UsedByNative("material_java_wrappers.h")
 public class Texture {
   private static final String TAG = Texture.class.getSimpleName();
+  // Runs the callbacks of region uploads.
+  private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
   /** Type of Texture usage. */
   public enum Usage {
@@ -72,6 +77,35 @@ public class Texture {
     return Preconditions.checkNotNull(textureData).getFilamentTexture();
   }
 
+  /**
+   * Replaces the {@code width} by {@code height} pixels of the texture whose top left corner is at
+   * ({@code x}, {@code y}) with {@code pixels}, keeping the rest of the texture. The pixels are RGBA,
+   * one byte per channel, row by row, as {@link Bitmap#copyPixelsToBuffer} writes them for an
+   * {@link Bitmap.Config#ARGB_8888} bitmap, and {@code pixels} must be a direct buffer. Only the
+   * base level is updated, so a texture updated this way should be sampled without mipmaps.
+   *
+   * <p>The pixels are uploaded asynchronously. The buffer must not be changed until {@code
+   * onUploaded} runs on the main thread, after which it can be reused.
+   */
+  public void setRegion(
+      int x, int y, int width, int height, ByteBuffer pixels, @Nullable Runnable onUploaded) {
+    AndroidPreconditions.checkUiThread();
+    IEngine engine = EngineInstance.getEngine();
+    com.google.android.filament.Texture.PixelBufferDescriptor descriptor =
+        new com.google.android.filament.Texture.PixelBufferDescriptor(
+            pixels,
+            com.google.android.filament.Texture.Format.RGBA,
+            com.google.android.filament.Texture.Type.UBYTE,
+            1,
+            0,
+            0,
+            0,
+            MAIN_HANDLER,
+            onUploaded);
+    getFilamentTexture()
+        .setImage(engine.getFilamentEngine(), 0, x, y, width, height, descriptor);
+  }
+
   private static com.google.android.filament.Texture.InternalFormat getInternalFormatForUsage(
       Usage usage) {
     com.google.android.filament.Texture.InternalFormat format;